@@ -0,0 +1,74 @@
+package alternative.trashcancleaner.platformsample;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Number of nodes deleted per transaction, adjusted after each transaction.
+ * <p>
+ * The size grows by a quarter while transactions commit in less than half the target time without retry,
+ * shrinks by a quarter when they take longer than the target and is halved as soon as a transaction had
+ * to be retried or failed (lock waits, deadlocks). It always stays between the configured bounds.
+ * Shared by the purge workers.
+ * @author Philippe
+ *
+ */
+class AdaptiveBatchSizer
+{
+    private static final Log logger = LogFactory.getLog(AdaptiveBatchSizer.class);
+
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final long targetCommitMs;
+
+    private volatile int batchSize;
+
+    AdaptiveBatchSizer(int minBatchSize, int maxBatchSize, int initialBatchSize, long targetCommitMs)
+    {
+        this.minBatchSize = Math.max(1, minBatchSize);
+        this.maxBatchSize = Math.max(this.minBatchSize, maxBatchSize);
+        this.targetCommitMs = targetCommitMs;
+        this.batchSize = clamp(initialBatchSize);
+    }
+
+    int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    /**
+     * Record a transaction
+     *
+     * @param size number of nodes the transaction was given
+     * @param elapsedMs time spent in the transaction, retries and commit included
+     * @param retries number of times the transaction has been retried
+     * @param failed true if the transaction finally failed
+     */
+    synchronized void record(int size, long elapsedMs, int retries, boolean failed)
+    {
+        int previous = batchSize;
+        if (failed || retries > 0)
+        {
+            batchSize = clamp(previous / 2);
+        }
+        else if (elapsedMs > targetCommitMs)
+        {
+            batchSize = clamp(previous - previous / 4);
+        }
+        else if (elapsedMs < targetCommitMs / 2 && size >= previous)
+        {
+            // only a full batch tells the size can be afforded
+            batchSize = clamp(previous + Math.max(1, previous / 4));
+        }
+        if (logger.isDebugEnabled() && batchSize != previous)
+        {
+            logger.debug("Batch size " + previous + " -> " + batchSize + " (" + size + " nodes in " + elapsedMs
+                    + " ms, " + retries + " retries" + (failed ? ", failed" : "") + ")");
+        }
+    }
+
+    private int clamp(int size)
+    {
+        return Math.min(maxBatchSize, Math.max(minBatchSize, size));
+    }
+}
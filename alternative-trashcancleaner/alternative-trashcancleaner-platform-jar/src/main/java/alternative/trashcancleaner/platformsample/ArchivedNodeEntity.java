@@ -0,0 +1,44 @@
+package alternative.trashcancleaner.platformsample;
+
+/**
+ * Row returned by the archived nodes canned query
+ * @author Philippe
+ *
+ */
+public class ArchivedNodeEntity
+{
+    private Long id;
+    private String uuid;
+    // sys:archivedDate as persisted in alf_node_properties.string_value
+    private String archivedDate;
+
+    public Long getId()
+    {
+        return id;
+    }
+
+    public void setId(Long id)
+    {
+        this.id = id;
+    }
+
+    public String getUuid()
+    {
+        return uuid;
+    }
+
+    public void setUuid(String uuid)
+    {
+        this.uuid = uuid;
+    }
+
+    public String getArchivedDate()
+    {
+        return archivedDate;
+    }
+
+    public void setArchivedDate(String archivedDate)
+    {
+        this.archivedDate = archivedDate;
+    }
+}
@@ -0,0 +1,89 @@
+package alternative.trashcancleaner.platformsample;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+
+/**
+ * Snapshot of the metadata of an archived node needed to decide if it can be purged
+ * @author Philippe
+ *
+ */
+class ArchivedNodeInfo
+{
+    private final NodeRef nodeRef;
+    // null if the node does not exist anymore
+    private final Long nodeId;
+    private final QName type;
+    private final Set<QName> aspects;
+    private final Date archivedDate;
+    private final String name;
+    // primary child of the root of the archive store
+    private final boolean archivedRoot;
+
+    ArchivedNodeInfo(NodeRef nodeRef, Long nodeId, QName type, Set<QName> aspects, Date archivedDate, String name,
+            boolean archivedRoot)
+    {
+        this.nodeRef = nodeRef;
+        this.nodeId = nodeId;
+        this.type = type;
+        this.aspects = (aspects == null) ? Collections.<QName> emptySet() : aspects;
+        this.archivedDate = archivedDate;
+        this.name = name;
+        this.archivedRoot = archivedRoot;
+    }
+
+    /**
+     * Snapshot of a node that does not exist
+     */
+    ArchivedNodeInfo(NodeRef nodeRef)
+    {
+        this(nodeRef, null, null, null, null, null, false);
+    }
+
+    NodeRef getNodeRef()
+    {
+        return nodeRef;
+    }
+
+    Long getNodeId()
+    {
+        return nodeId;
+    }
+
+    boolean exists()
+    {
+        return nodeId != null;
+    }
+
+    QName getType()
+    {
+        return type;
+    }
+
+    boolean hasAspect(QName aspect)
+    {
+        return aspects.contains(aspect);
+    }
+
+    Date getArchivedDate()
+    {
+        return archivedDate;
+    }
+
+    String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return true for the root of an archived tree, false for a node archived below another one
+     */
+    boolean isArchivedRoot()
+    {
+        return archivedRoot;
+    }
+}
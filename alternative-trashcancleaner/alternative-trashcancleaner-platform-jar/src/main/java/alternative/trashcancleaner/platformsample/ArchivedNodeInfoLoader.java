@@ -0,0 +1,84 @@
+package alternative.trashcancleaner.platformsample;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.Pair;
+
+/**
+ * Bulk load of the metadata of a page of archived nodes.
+ * <p>
+ * The whole page is pre-loaded with {@link NodeDAO#cacheNodes(List)}, which fetches nodes, aspects and
+ * properties in a few batched queries, the snapshot is then built from the node caches.
+ * Must be called inside a transaction.
+ * @author Philippe
+ *
+ */
+class ArchivedNodeInfoLoader
+{
+    private final NodeDAO nodeDAO;
+
+    ArchivedNodeInfoLoader(NodeDAO nodeDAO)
+    {
+        this.nodeDAO = nodeDAO;
+    }
+
+    /**
+     * @param nodeRefs page of nodes
+     * @return snapshots in the order of the page
+     */
+    List<ArchivedNodeInfo> load(List<NodeRef> nodeRefs)
+    {
+        List<ArchivedNodeInfo> infos = new ArrayList<ArchivedNodeInfo>(nodeRefs.size());
+        if (nodeRefs.size() == 0)
+        {
+            return infos;
+        }
+        nodeDAO.cacheNodes(nodeRefs);
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            infos.add(load(nodeRef));
+        }
+        return infos;
+    }
+
+    /**
+     * @param nodeRef node to read, ideally already cached
+     * @return snapshot of the node
+     */
+    ArchivedNodeInfo load(NodeRef nodeRef)
+    {
+        Pair<Long, NodeRef> nodePair = nodeDAO.getNodePair(nodeRef);
+        if (nodePair == null)
+        {
+            return new ArchivedNodeInfo(nodeRef);
+        }
+        Long nodeId = nodePair.getFirst();
+        Map<QName, Serializable> properties = nodeDAO.getNodeProperties(nodeId);
+        return new ArchivedNodeInfo(nodeRef, nodeId, nodeDAO.getNodeType(nodeId), nodeDAO.getNodeAspects(nodeId),
+                (Date) properties.get(ContentModel.PROP_ARCHIVED_DATE), (String) properties.get(ContentModel.PROP_NAME),
+                isArchivedRoot(nodeId, nodeRef.getStoreRef()));
+    }
+
+    /**
+     * The nodes below an archived root carry sys:archived as well and some sources return them too
+     *
+     * @return true if the primary parent of the node is the root of its store
+     */
+    private boolean isArchivedRoot(Long nodeId, StoreRef storeRef)
+    {
+        Pair<Long, ChildAssociationRef> parentAssoc = nodeDAO.getPrimaryParentAssoc(nodeId);
+        Pair<Long, NodeRef> storeRoot = nodeDAO.getRootNode(storeRef);
+        return parentAssoc != null && storeRoot != null
+                && storeRoot.getSecond().equals(parentAssoc.getSecond().getParentRef());
+    }
+}
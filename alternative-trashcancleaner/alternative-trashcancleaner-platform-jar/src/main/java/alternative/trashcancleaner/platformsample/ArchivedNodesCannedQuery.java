@@ -0,0 +1,65 @@
+package alternative.trashcancleaner.platformsample;
+
+import java.util.List;
+
+import org.alfresco.query.AbstractCannedQuery;
+import org.alfresco.query.CannedQueryParameters;
+import org.apache.ibatis.session.RowBounds;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mybatis.spring.SqlSessionTemplate;
+
+/**
+ * Canned query returning the archived roots of the archive store ordered by
+ * (sys:archivedDate, node id), read directly from the database.
+ * <p>
+ * Paging is done by the SQL statement itself (keyset on the cursor held in the parameter bean),
+ * no post query sorting or paging is applied.
+ * @author Philippe
+ *
+ */
+public class ArchivedNodesCannedQuery extends AbstractCannedQuery<ArchivedNodeEntity>
+{
+    private static final Log logger = LogFactory.getLog(ArchivedNodesCannedQuery.class);
+
+    private static final String QUERY_SELECT_ARCHIVED_NODES = "alt.trashcancleaner.select_ArchivedNodes";
+
+    private final SqlSessionTemplate template;
+
+    public ArchivedNodesCannedQuery(SqlSessionTemplate template, CannedQueryParameters params)
+    {
+        super(params);
+        this.template = template;
+    }
+
+    @Override
+    protected List<ArchivedNodeEntity> queryAndFilter(CannedQueryParameters parameters)
+    {
+        Long start = (logger.isDebugEnabled() ? System.currentTimeMillis() : null);
+
+        ArchivedNodesCannedQueryParams paramBean = (ArchivedNodesCannedQueryParams) parameters.getParameterBean();
+        int maxItems = parameters.getPageDetails().getPageSize();
+
+        List<ArchivedNodeEntity> result = template.selectList(QUERY_SELECT_ARCHIVED_NODES, paramBean,
+                new RowBounds(0, maxItems));
+
+        if (start != null)
+        {
+            logger.debug("Archived nodes query: " + result.size() + " rows in "
+                    + (System.currentTimeMillis() - start) + " msecs");
+        }
+        return result;
+    }
+
+    @Override
+    protected boolean isApplyPostQuerySorting()
+    {
+        return false;
+    }
+
+    @Override
+    protected boolean isApplyPostQueryPaging()
+    {
+        return false;
+    }
+}
@@ -0,0 +1,127 @@
+package alternative.trashcancleaner.platformsample;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.query.AbstractCannedQueryFactory;
+import org.alfresco.query.CannedQuery;
+import org.alfresco.query.CannedQueryPageDetails;
+import org.alfresco.query.CannedQueryParameters;
+import org.alfresco.query.PagingRequest;
+import org.alfresco.repo.domain.qname.QNameDAO;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.repository.datatype.DefaultTypeConverter;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.Pair;
+import org.alfresco.util.PropertyCheck;
+import org.mybatis.spring.SqlSessionTemplate;
+
+/**
+ * Factory of {@link ArchivedNodesCannedQuery}
+ * @author Philippe
+ *
+ */
+public class ArchivedNodesCannedQueryFactory extends AbstractCannedQueryFactory<ArchivedNodeEntity>
+{
+    private SqlSessionTemplate sqlSessionTemplate;
+    private QNameDAO qnameDAO;
+
+    public void setSqlSessionTemplate(SqlSessionTemplate sqlSessionTemplate)
+    {
+        this.sqlSessionTemplate = sqlSessionTemplate;
+    }
+
+    public void setQnameDAO(QNameDAO qnameDAO)
+    {
+        this.qnameDAO = qnameDAO;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception
+    {
+        super.afterPropertiesSet();
+        PropertyCheck.mandatory(this, "sqlSessionTemplate", sqlSessionTemplate);
+        PropertyCheck.mandatory(this, "qnameDAO", qnameDAO);
+    }
+
+    @Override
+    public CannedQuery<ArchivedNodeEntity> getCannedQuery(CannedQueryParameters parameters)
+    {
+        return new ArchivedNodesCannedQuery(sqlSessionTemplate, parameters);
+    }
+
+    /**
+     * Get a canned query returning the archived roots of the store sorted after the cursor,
+     * leaving out roots of the excluded types, the excluded nodes and the roots of other partitions
+     *
+     * @param storeRef archive store
+     * @param cutoff only nodes archived at or before this date are returned, null for no bound
+     * @param lastArchivedDate archived date of the last row already read, null for the first page
+     * @param lastId node id of the last row already read, null for the first page
+     * @param excludedTypes exact types of the roots to leave out
+     * @param excludedNodes roots to leave out, nodes of other stores are ignored
+     * @param partitions number of partitions of the bin, 1 for the whole bin
+     * @param partition only roots whose node id modulo partitions is this value are returned
+     * @param pageLen maximum number of rows
+     * @return the canned query, null if the archive model is unknown to the database (empty bin)
+     */
+    public CannedQuery<ArchivedNodeEntity> getCannedQuery(StoreRef storeRef, Date cutoff, String lastArchivedDate,
+            Long lastId, Set<QName> excludedTypes, Set<NodeRef> excludedNodes, int partitions, int partition,
+            int pageLen)
+    {
+        Long archivedAspectQNameId = getQNameId(ContentModel.ASPECT_ARCHIVED);
+        Long archivedDateQNameId = getQNameId(ContentModel.PROP_ARCHIVED_DATE);
+        if (archivedAspectQNameId == null || archivedDateQNameId == null)
+        {
+            return null;
+        }
+
+        ArchivedNodesCannedQueryParams paramBean = new ArchivedNodesCannedQueryParams();
+        paramBean.setStoreProtocol(storeRef.getProtocol());
+        paramBean.setStoreIdentifier(storeRef.getIdentifier());
+        paramBean.setArchivedAspectQNameId(archivedAspectQNameId);
+        paramBean.setArchivedDateQNameId(archivedDateQNameId);
+        // compared with the persisted string value, converted the same way the node DAO does
+        paramBean.setCutoff(cutoff == null ? null : DefaultTypeConverter.INSTANCE.convert(String.class, cutoff));
+        paramBean.setLastArchivedDate(lastArchivedDate);
+        paramBean.setLastId(lastId);
+        List<Long> excludedTypeQNameIds = new ArrayList<Long>(excludedTypes.size());
+        for (QName type : excludedTypes)
+        {
+            // a type never persisted can not be the type of a node
+            Long typeQNameId = getQNameId(type);
+            if (typeQNameId != null)
+            {
+                excludedTypeQNameIds.add(typeQNameId);
+            }
+        }
+        paramBean.setExcludedTypeQNameIds(excludedTypeQNameIds);
+        List<String> excludedUuids = new ArrayList<String>(excludedNodes.size());
+        for (NodeRef nodeRef : excludedNodes)
+        {
+            if (storeRef.equals(nodeRef.getStoreRef()))
+            {
+                excludedUuids.add(nodeRef.getId());
+            }
+        }
+        paramBean.setExcludedUuids(excludedUuids);
+        paramBean.setPartitions(Math.max(1, partitions));
+        paramBean.setPartition(partition);
+
+        PagingRequest pagingRequest = new PagingRequest(0, pageLen);
+        CannedQueryPageDetails cqpd = createCQPageDetails(pagingRequest);
+        CannedQueryParameters params = new CannedQueryParameters(paramBean, cqpd, null,
+                pagingRequest.getRequestTotalCountMax(), pagingRequest.getQueryExecutionId());
+        return getCannedQuery(params);
+    }
+
+    private Long getQNameId(QName qname)
+    {
+        Pair<Long, QName> pair = qnameDAO.getQName(qname);
+        return (pair == null) ? null : pair.getFirst();
+    }
+}
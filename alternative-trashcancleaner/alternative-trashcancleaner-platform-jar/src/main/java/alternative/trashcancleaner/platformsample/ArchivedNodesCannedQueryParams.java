@@ -0,0 +1,144 @@
+package alternative.trashcancleaner.platformsample;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Parameter bean of the archived nodes canned query
+ * @author Philippe
+ *
+ */
+public class ArchivedNodesCannedQueryParams
+{
+    private String storeProtocol;
+    private String storeIdentifier;
+    private Long archivedAspectQNameId;
+    private Long archivedDateQNameId;
+    private Boolean primary = Boolean.TRUE;
+    // upper bound on sys:archivedDate, null for no bound
+    private String cutoff;
+    // cursor: key of the last row returned, null for the first page
+    private String lastArchivedDate;
+    private Long lastId;
+    // roots left out, empty lists for none
+    private List<Long> excludedTypeQNameIds = Collections.emptyList();
+    private List<String> excludedUuids = Collections.emptyList();
+    // only node ids equal to partition modulo partitions, every node when partitions is 1
+    private int partitions = 1;
+    private int partition = 0;
+
+    public String getStoreProtocol()
+    {
+        return storeProtocol;
+    }
+
+    public void setStoreProtocol(String storeProtocol)
+    {
+        this.storeProtocol = storeProtocol;
+    }
+
+    public String getStoreIdentifier()
+    {
+        return storeIdentifier;
+    }
+
+    public void setStoreIdentifier(String storeIdentifier)
+    {
+        this.storeIdentifier = storeIdentifier;
+    }
+
+    public Long getArchivedAspectQNameId()
+    {
+        return archivedAspectQNameId;
+    }
+
+    public void setArchivedAspectQNameId(Long archivedAspectQNameId)
+    {
+        this.archivedAspectQNameId = archivedAspectQNameId;
+    }
+
+    public Long getArchivedDateQNameId()
+    {
+        return archivedDateQNameId;
+    }
+
+    public void setArchivedDateQNameId(Long archivedDateQNameId)
+    {
+        this.archivedDateQNameId = archivedDateQNameId;
+    }
+
+    public Boolean getPrimary()
+    {
+        return primary;
+    }
+
+    public String getCutoff()
+    {
+        return cutoff;
+    }
+
+    public void setCutoff(String cutoff)
+    {
+        this.cutoff = cutoff;
+    }
+
+    public String getLastArchivedDate()
+    {
+        return lastArchivedDate;
+    }
+
+    public void setLastArchivedDate(String lastArchivedDate)
+    {
+        this.lastArchivedDate = lastArchivedDate;
+    }
+
+    public Long getLastId()
+    {
+        return lastId;
+    }
+
+    public void setLastId(Long lastId)
+    {
+        this.lastId = lastId;
+    }
+
+    public List<Long> getExcludedTypeQNameIds()
+    {
+        return excludedTypeQNameIds;
+    }
+
+    public void setExcludedTypeQNameIds(List<Long> excludedTypeQNameIds)
+    {
+        this.excludedTypeQNameIds = excludedTypeQNameIds;
+    }
+
+    public List<String> getExcludedUuids()
+    {
+        return excludedUuids;
+    }
+
+    public void setExcludedUuids(List<String> excludedUuids)
+    {
+        this.excludedUuids = excludedUuids;
+    }
+
+    public int getPartitions()
+    {
+        return partitions;
+    }
+
+    public void setPartitions(int partitions)
+    {
+        this.partitions = partitions;
+    }
+
+    public int getPartition()
+    {
+        return partition;
+    }
+
+    public void setPartition(int partition)
+    {
+        this.partition = partition;
+    }
+}
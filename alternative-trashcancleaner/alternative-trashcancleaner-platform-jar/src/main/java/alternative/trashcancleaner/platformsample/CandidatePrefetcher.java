@@ -0,0 +1,255 @@
+package alternative.trashcancleaner.platformsample;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Producer side of the purge pipeline.
+ * <p>
+ * A background thread reads the next pages of candidates, each one in its own read-only
+ * transaction together with a snapshot of their metadata, and hands them over through a bounded queue while the current page is being
+ * deleted. With a depth of 0 no thread is started and pages are read on demand by the caller.
+ * @author Philippe
+ *
+ */
+class CandidatePrefetcher
+{
+    private static final Log logger = LogFactory.getLog(CandidatePrefetcher.class);
+
+    // how long blocking calls wait before checking if the pipeline is still running
+    private static final long POLL_MS = 200L;
+    private static final long JOIN_MS = 5000L;
+
+    private final CandidateSource candidates;
+    private final RetryingTransactionCallback<List<ArchivedNodeInfo>> getPage;
+    private final TransactionService transactionService;
+    private final BlockingQueue<Page> queue;
+    // position of the source before the page last returned by next(), read by the consumer only
+    private String pageCursor;
+
+    private volatile boolean running = true;
+    // set by the producer once the last page has been queued or on failure
+    private volatile boolean finished = false;
+    // failure of the producer, thrown to the consumer once the pages read before it are consumed
+    private volatile RuntimeException failure = null;
+    private Thread producer = null;
+
+    CandidatePrefetcher(CandidateSource candidates, ArchivedNodeInfoLoader loader, RetainedNodeRegistry retainedNodes,
+            TransactionService transactionService, int pageLen, int depth)
+    {
+        final CandidateSource fCandidates = candidates;
+        final ArchivedNodeInfoLoader fLoader = loader;
+        final RetainedNodeRegistry fRetainedNodes = retainedNodes;
+        final int fPageLen = pageLen;
+        this.getPage = new RetryingTransactionCallback<List<ArchivedNodeInfo>>()
+            {
+                public List<ArchivedNodeInfo> execute() throws Exception
+                {
+                    List<NodeRef> page = fCandidates.nextPage(fPageLen);
+                    if (page.size() == 0)
+                        return null; // source exhausted
+                    // nodes already known to be kept are not evaluated again,
+                    // the page and the metadata of its nodes are read in the same transaction
+                    return fLoader.load(fRetainedNodes.filter(page));
+                }
+            };
+        this.candidates = candidates;
+        this.transactionService = transactionService;
+        this.queue = (depth > 0) ? new ArrayBlockingQueue<Page>(depth) : null;
+        this.pageCursor = candidates.getCursor();
+    }
+
+    /**
+     * Page read with the position of the source before it
+     */
+    private static class Page
+    {
+        private final String cursor;
+        private final List<ArchivedNodeInfo> nodes;
+
+        Page(String cursor, List<ArchivedNodeInfo> nodes)
+        {
+            this.cursor = cursor;
+            this.nodes = nodes;
+        }
+    }
+
+    /**
+     * @return position of the source from which the page last returned by {@link #next()} is read again,
+     *         its nodes may not have been purged yet
+     */
+    String getPageCursor()
+    {
+        return pageCursor;
+    }
+
+    /**
+     * Read the next page, the position of the source is taken before the transaction since it may be retried
+     *
+     * @return next page, null once the source is exhausted
+     */
+    private Page readPage()
+    {
+        String cursor = candidates.getCursor();
+        List<ArchivedNodeInfo> nodes = transactionService.getRetryingTransactionHelper().doInTransaction(getPage,
+                true, true);
+        return (nodes == null) ? null : new Page(cursor, nodes);
+    }
+
+    /**
+     * Start reading ahead, no-op when the depth is 0
+     */
+    void start()
+    {
+        if (queue == null)
+            return;
+        producer = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Object>()
+                        {
+                            public Object doWork() throws Exception
+                            {
+                                produce();
+                                return null;
+                            }
+                        }, AuthenticationUtil.getSystemUserName());
+                }
+            }, "TrashcanCleanerPrefetch");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    /**
+     * Return the next page, blocking until it is available
+     * 
+     * @return next page, empty when there is nothing left or the pipeline has been shut down
+     * @throws RuntimeException the failure of the read ahead, the source is not exhausted
+     */
+    List<ArchivedNodeInfo> next()
+    {
+        if (queue == null)
+        {
+            while (running)
+            {
+                Page page = readPage();
+                if (page == null)
+                    break;
+                if (page.nodes.size() > 0)
+                {
+                    pageCursor = page.cursor;
+                    return page.nodes;
+                }
+            }
+            return new ArrayList<ArchivedNodeInfo>(0);
+        }
+        try
+        {
+            while (running)
+            {
+                Page page = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                if (page != null)
+                {
+                    pageCursor = page.cursor;
+                    return page.nodes;
+                }
+                if (finished && queue.isEmpty())
+                {
+                    if (failure != null)
+                        throw failure;
+                    break;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        return new ArrayList<ArchivedNodeInfo>(0);
+    }
+
+    /**
+     * Stop reading ahead and drop the pages not consumed yet, without waiting for the page being read.
+     * Can be called from any thread.
+     */
+    void stop()
+    {
+        running = false;
+        if (queue != null)
+        {
+            queue.clear();
+        }
+    }
+
+    /**
+     * Stop reading ahead and wait for the producer to end, called by the thread running the pipeline
+     */
+    void shutdown()
+    {
+        stop();
+        if (queue == null)
+            return;
+        Thread t = producer;
+        if (t != null && t != Thread.currentThread())
+        {
+            t.interrupt();
+            try
+            {
+                t.join(JOIN_MS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void produce()
+    {
+        try
+        {
+            while (running)
+            {
+                Page page = readPage();
+                if (page == null)
+                    break;
+                if (page.nodes.size() == 0)
+                    continue; // every node of the page was filtered out
+                while (running && !queue.offer(page, POLL_MS, TimeUnit.MILLISECONDS))
+                {
+                    // queue full, the consumer is still busy with previous pages
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Prefetch interrupted");
+            }
+        }
+        catch (Throwable e)
+        {
+            if (running)
+            {
+                logger.error("Prefetch of candidates failed, ending run", e);
+                failure = (e instanceof RuntimeException) ? (RuntimeException) e : new RuntimeException(e);
+            }
+        }
+        finally
+        {
+            finished = true;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package alternative.trashcancleaner.platformsample;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+
+/**
+ * Source of archived nodes candidate for purge.
+ * <p>
+ * Implementations keep their position between calls, pages are read inside a transaction.
+ * @author Philippe
+ *
+ */
+interface CandidateSource
+{
+    /**
+     * Bound the iteration to nodes archived at or before the given date
+     *
+     * @param cutoff upper bound on sys:archivedDate, null for no bound
+     */
+    void setCutoff(Date cutoff);
+
+    /**
+     * Leave out of the iteration the nodes of the given types and the given nodes, so they do not use page slots.
+     * Sources that can not filter on them return them, they are then rejected on the page snapshot.
+     *
+     * @param excludedTypes exact types to leave out (subtypes must be listed as well)
+     * @param excludedNodes nodes to leave out
+     */
+    void setExclusions(Set<QName> excludedTypes, Set<NodeRef> excludedNodes);
+
+    /**
+     * Restrict the iteration to the nodes of a partition of the bin, those whose node id modulo the number of
+     * partitions is the partition. Sources that can not filter on it return every node, the other partitions
+     * are then rejected on the page snapshot.
+     *
+     * @param partitions number of partitions, 1 or less for the whole bin
+     * @param partition partition iterated, from 0 to partitions - 1
+     */
+    void setPartition(int partitions, int partition);
+
+    /**
+     * @return position of the iteration, the next page is read again after {@link #setCursor(String)} with it,
+     *         null if the source can not be positioned
+     */
+    String getCursor();
+
+    /**
+     * Move to a position returned by {@link #getCursor()}
+     *
+     * @param cursor null to restart from the oldest node of the bin
+     */
+    void setCursor(String cursor);
+
+    /**
+     * Return the next page of candidates and move after its last element
+     *
+     * @param pageLen maximum number of nodes returned
+     * @return next candidates, empty list when the bin has been fully read
+     */
+    List<NodeRef> nextPage(int pageLen);
+}
@@ -0,0 +1,127 @@
+package alternative.trashcancleaner.platformsample;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.alfresco.query.CannedQuery;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.namespace.QName;
+
+/**
+ * Database direct candidate source, bypassing the search subsystem.
+ * <p>
+ * Archived roots (primary children of the archive store root) are read in fixed size batches
+ * through {@link ArchivedNodesCannedQuery}, ordered by (sys:archivedDate, node id). Like
+ * {@link SearchCandidateSource} it is keyset paginated: the key of the last row is kept and the
+ * next batch starts after it.
+ * @author Philippe
+ *
+ */
+class CannedQueryCandidateSource implements CandidateSource
+{
+    private static final StoreRef ARCHIVE_STORE_REF = new StoreRef("archive", "SpacesStore");
+    private static final String CURSOR_SEPARATOR = "|";
+
+    private final ArchivedNodesCannedQueryFactory cannedQueryFactory;
+
+    private Date cutoff = null;
+    private Set<QName> excludedTypes = Collections.emptySet();
+    private Set<NodeRef> excludedNodes = Collections.emptySet();
+    private int partitions = 1;
+    private int partition = 0;
+
+    // key of the last row returned, null before the first page
+    private String lastArchivedDate = null;
+    private Long lastId = null;
+
+    CannedQueryCandidateSource(ArchivedNodesCannedQueryFactory cannedQueryFactory)
+    {
+        this.cannedQueryFactory = cannedQueryFactory;
+    }
+
+    @Override
+    public void setCutoff(Date cutoff)
+    {
+        this.cutoff = cutoff;
+    }
+
+    @Override
+    public void setExclusions(Set<QName> excludedTypes, Set<NodeRef> excludedNodes)
+    {
+        this.excludedTypes = excludedTypes;
+        this.excludedNodes = excludedNodes;
+    }
+
+    @Override
+    public void setPartition(int partitions, int partition)
+    {
+        this.partitions = partitions;
+        this.partition = partition;
+    }
+
+    /**
+     * Restart iteration from the oldest node of the bin
+     */
+    private void reset()
+    {
+        lastArchivedDate = null;
+        lastId = null;
+    }
+
+    /**
+     * @return archived date and id of the last row returned
+     */
+    @Override
+    public String getCursor()
+    {
+        if (lastArchivedDate == null || lastId == null)
+            return null;
+        return lastArchivedDate + CURSOR_SEPARATOR + lastId;
+    }
+
+    @Override
+    public void setCursor(String cursor)
+    {
+        reset();
+        int idx = (cursor == null) ? -1 : cursor.lastIndexOf(CURSOR_SEPARATOR);
+        if (idx < 0)
+            return;
+        try
+        {
+            lastId = Long.valueOf(cursor.substring(idx + 1));
+            lastArchivedDate = cursor.substring(0, idx);
+        }
+        catch (NumberFormatException e)
+        {
+            reset();
+        }
+    }
+
+    @Override
+    public List<NodeRef> nextPage(int pageLen)
+    {
+        CannedQuery<ArchivedNodeEntity> cq = cannedQueryFactory.getCannedQuery(ARCHIVE_STORE_REF, cutoff,
+                lastArchivedDate, lastId, excludedTypes, excludedNodes, partitions, partition, pageLen);
+        if (cq == null)
+        {
+            return new ArrayList<NodeRef>(0);
+        }
+        List<ArchivedNodeEntity> rows = cq.execute().getPage();
+        List<NodeRef> page = new ArrayList<NodeRef>(rows.size());
+        for (ArchivedNodeEntity row : rows)
+        {
+            page.add(new NodeRef(ARCHIVE_STORE_REF, row.getUuid()));
+        }
+        if (rows.size() > 0)
+        {
+            ArchivedNodeEntity last = rows.get(rows.size() - 1);
+            lastArchivedDate = last.getArchivedDate();
+            lastId = last.getId();
+        }
+        return page;
+    }
+}
@@ -0,0 +1,160 @@
+package alternative.trashcancleaner.platformsample;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.Pair;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Candidate source walking the children of the archive store root node.
+ * <p>
+ * Only the archived roots are children of the archive store root, as sys:archivedItem, nodes below them are
+ * never returned, so the number of candidates matches what actually needs to be purged. Children are read
+ * in pages with {@link ChildNodesDAO} sorted by node id, the next page starts after the last id returned so
+ * deletions do not move the position and pages can be read ahead. Only the children of the partition are
+ * read. Children are not sorted on
+ * sys:archivedDate: nodes archived after the cutoff, of an excluded type or excluded are dropped from each
+ * page once read, the other children of the root (archive users...) as well.
+ * <p>
+ * Must be called inside a transaction.
+ * @author Philippe
+ *
+ */
+class ChildAssocCandidateSource implements CandidateSource
+{
+    private static final Log logger = LogFactory.getLog(ChildAssocCandidateSource.class);
+
+    private static final StoreRef ARCHIVE_STORE_REF = new StoreRef("archive", "SpacesStore");
+    // name of the primary association of an archived root to the archive store root
+    static final QName ARCHIVED_ITEM = QName.createQName(NamespaceService.SYSTEM_MODEL_1_0_URI, "archivedItem");
+
+    private final NodeDAO nodeDAO;
+    private final ChildNodesDAO childNodesDAO;
+
+    private Date cutoff = null;
+    private Set<QName> excludedTypes = Collections.emptySet();
+    private Set<NodeRef> excludedNodes = Collections.emptySet();
+    private int partitions = 1;
+    private int partition = 0;
+
+    // id of the last child read, null before the first page
+    private Long lastId = null;
+
+    ChildAssocCandidateSource(NodeDAO nodeDAO, ChildNodesDAO childNodesDAO)
+    {
+        this.nodeDAO = nodeDAO;
+        this.childNodesDAO = childNodesDAO;
+    }
+
+    @Override
+    public void setCutoff(Date cutoff)
+    {
+        this.cutoff = cutoff;
+    }
+
+    @Override
+    public void setExclusions(Set<QName> excludedTypes, Set<NodeRef> excludedNodes)
+    {
+        this.excludedTypes = excludedTypes;
+        this.excludedNodes = excludedNodes;
+    }
+
+    @Override
+    public void setPartition(int partitions, int partition)
+    {
+        this.partitions = partitions;
+        this.partition = partition;
+    }
+
+    /**
+     * Restart iteration from the oldest node of the bin
+     */
+    private void reset()
+    {
+        lastId = null;
+    }
+
+    /**
+     * @return id of the last child read
+     */
+    @Override
+    public String getCursor()
+    {
+        return (lastId == null) ? null : lastId.toString();
+    }
+
+    @Override
+    public void setCursor(String cursor)
+    {
+        reset();
+        if (cursor == null)
+            return;
+        try
+        {
+            lastId = Long.valueOf(cursor);
+        }
+        catch (NumberFormatException e)
+        {
+            logger.warn("Invalid cursor " + cursor + ", restarting from the first child: " + e);
+        }
+    }
+
+    @Override
+    public List<NodeRef> nextPage(int pageLen)
+    {
+        Pair<Long, NodeRef> archiveRoot = nodeDAO.getRootNode(ARCHIVE_STORE_REF);
+        if (archiveRoot == null)
+            return new ArrayList<NodeRef>(0);
+        while (true)
+        {
+            List<Long> childIds = childNodesDAO.getPrimaryChildNodeIds(archiveRoot.getFirst(), lastId, partitions,
+                    partition, pageLen);
+            if (childIds.isEmpty())
+                return new ArrayList<NodeRef>(0);
+            lastId = childIds.get(childIds.size() - 1);
+            List<NodeRef> page = filter(childIds);
+            // a page entirely filtered out is not the end of the children
+            if (!page.isEmpty() || childIds.size() < pageLen)
+                return page;
+        }
+    }
+
+    /**
+     * @return archived roots of the children, archived at or before the cutoff and not excluded
+     */
+    private List<NodeRef> filter(List<Long> childIds)
+    {
+        nodeDAO.cacheNodesById(childIds);
+        List<NodeRef> page = new ArrayList<NodeRef>(childIds.size());
+        for (Long childId : childIds)
+        {
+            Pair<Long, NodeRef> nodePair = nodeDAO.getNodePair(childId);
+            if (nodePair == null || excludedNodes.contains(nodePair.getSecond()))
+                continue;
+            Pair<Long, ChildAssociationRef> parentAssoc = nodeDAO.getPrimaryParentAssoc(childId);
+            if (parentAssoc == null || !ARCHIVED_ITEM.equals(parentAssoc.getSecond().getQName()))
+                continue;
+            if (excludedTypes.contains(nodeDAO.getNodeType(childId)))
+                continue;
+            Serializable archivedDate = nodeDAO.getNodeProperty(childId, ContentModel.PROP_ARCHIVED_DATE);
+            // nodes without archived date are still returned, they are reported on the page snapshot
+            if (cutoff != null && archivedDate instanceof Date && ((Date) archivedDate).after(cutoff))
+                continue;
+            page.add(nodePair.getSecond());
+        }
+        return page;
+    }
+}
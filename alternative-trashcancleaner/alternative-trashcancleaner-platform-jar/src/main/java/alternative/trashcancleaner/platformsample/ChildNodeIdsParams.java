@@ -0,0 +1,55 @@
+package alternative.trashcancleaner.platformsample;
+
+/**
+ * Parameter bean of the primary children query, keyset paging on the child node id
+ * @author Philippe
+ *
+ */
+public class ChildNodeIdsParams
+{
+    private final Long parentNodeId;
+    // id of the last child returned, null for the first page
+    private final Long lastChildNodeId;
+    private final Boolean primary = Boolean.TRUE;
+    // only child ids equal to partition modulo partitions, every child when partitions is 1
+    private final int partitions;
+    private final int partition;
+
+    public ChildNodeIdsParams(Long parentNodeId, Long lastChildNodeId)
+    {
+        this(parentNodeId, lastChildNodeId, 1, 0);
+    }
+
+    public ChildNodeIdsParams(Long parentNodeId, Long lastChildNodeId, int partitions, int partition)
+    {
+        this.parentNodeId = parentNodeId;
+        this.lastChildNodeId = lastChildNodeId;
+        this.partitions = Math.max(1, partitions);
+        this.partition = partition;
+    }
+
+    public Long getParentNodeId()
+    {
+        return parentNodeId;
+    }
+
+    public Long getLastChildNodeId()
+    {
+        return lastChildNodeId;
+    }
+
+    public Boolean getPrimary()
+    {
+        return primary;
+    }
+
+    public int getPartitions()
+    {
+        return partitions;
+    }
+
+    public int getPartition()
+    {
+        return partition;
+    }
+}
@@ -0,0 +1,55 @@
+package alternative.trashcancleaner.platformsample;
+
+import java.util.List;
+
+import org.apache.ibatis.session.RowBounds;
+import org.mybatis.spring.SqlSessionTemplate;
+
+/**
+ * Paged read of the primary children of a node, directly from alf_child_assoc.
+ * <p>
+ * Children are returned by increasing node id and a page starts after the last id of the previous one,
+ * so only one page of ids is held at a time whatever the number of children.
+ * Must be called inside a transaction.
+ * @author Philippe
+ *
+ */
+public class ChildNodesDAO
+{
+    private static final String QUERY_SELECT_PRIMARY_CHILD_IDS = "alt.trashcancleaner.select_PrimaryChildNodeIds";
+
+    private SqlSessionTemplate sqlSessionTemplate;
+
+    public void setSqlSessionTemplate(SqlSessionTemplate sqlSessionTemplate)
+    {
+        this.sqlSessionTemplate = sqlSessionTemplate;
+    }
+
+    /**
+     * @param parentNodeId
+     * @param lastChildNodeId id of the last child of the previous page, null for the first page
+     * @param pageSize maximum number of ids returned
+     * @return ids of the primary children sorted after lastChildNodeId, empty when there is none left
+     */
+    public List<Long> getPrimaryChildNodeIds(Long parentNodeId, Long lastChildNodeId, int pageSize)
+    {
+        return sqlSessionTemplate.selectList(QUERY_SELECT_PRIMARY_CHILD_IDS,
+                new ChildNodeIdsParams(parentNodeId, lastChildNodeId), new RowBounds(0, pageSize));
+    }
+
+    /**
+     * @param parentNodeId
+     * @param lastChildNodeId id of the last child of the previous page, null for the first page
+     * @param partitions number of partitions, 1 for every child
+     * @param partition only children whose id modulo partitions is this value are returned
+     * @param pageSize maximum number of ids returned
+     * @return ids of the primary children of the partition sorted after lastChildNodeId, empty when there is
+     *         none left
+     */
+    public List<Long> getPrimaryChildNodeIds(Long parentNodeId, Long lastChildNodeId, int partitions, int partition,
+            int pageSize)
+    {
+        return sqlSessionTemplate.selectList(QUERY_SELECT_PRIMARY_CHILD_IDS, new ChildNodeIdsParams(parentNodeId,
+                lastChildNodeId, partitions, partition), new RowBounds(0, pageSize));
+    }
+}
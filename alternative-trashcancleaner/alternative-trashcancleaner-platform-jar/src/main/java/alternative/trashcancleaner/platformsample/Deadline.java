@@ -0,0 +1,73 @@
+package alternative.trashcancleaner.platformsample;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time budget of a run.
+ * <p>
+ * The purge checks {@link #isExpired()} between two transactions and between two nodes of a walk, which only
+ * reads the clock. The task given to {@link #onExpiry(Runnable)} runs once the budget is spent to wake up
+ * whatever waits meanwhile (the candidate prefetcher). It runs on the scheduler given by the cleaner, which
+ * owns it and stops it when it is destroyed.
+ * @author Philippe
+ *
+ */
+class Deadline
+{
+    // no time budget
+    static final Deadline NONE = new Deadline(0L, null);
+
+    private final long budgetMs;
+    // System.nanoTime() at expiry, only meaningful with a budget
+    private final long expiresAt;
+    // runs the expiry task, null without limit
+    private final ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> expiryTask = null;
+
+    /**
+     * @param budgetMs time allowed from now, 0 or less for no limit
+     * @param scheduler runs the expiry task, not used without limit
+     */
+    Deadline(long budgetMs, ScheduledExecutorService scheduler)
+    {
+        this.budgetMs = budgetMs;
+        this.expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0L, budgetMs));
+        this.scheduler = scheduler;
+    }
+
+    boolean isLimited()
+    {
+        return budgetMs > 0L;
+    }
+
+    boolean isExpired()
+    {
+        return isLimited() && System.nanoTime() - expiresAt >= 0L;
+    }
+
+    /**
+     * Run the task on the scheduler once the deadline has expired, nothing without limit
+     */
+    synchronized void onExpiry(Runnable task)
+    {
+        if (!isLimited())
+            return;
+        cancel();
+        // in nanoseconds, a delay rounded down to the millisecond would run the task before the expiry
+        expiryTask = scheduler.schedule(task, Math.max(0L, expiresAt - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Drop the expiry task, the run is over
+     */
+    synchronized void cancel()
+    {
+        if (expiryTask != null)
+        {
+            expiryTask.cancel(false);
+            expiryTask = null;
+        }
+    }
+}
@@ -34,6 +34,15 @@ public class GetStatus extends AbstractWebScript
             try
             {
                 jResult.put("STATUS", trashcanCleaner.getStatus());
+                jResult.put("DELETED_NODES", trashcanCleaner.getDeletedNodesCount());
+                jResult.put("TOTAL_DELETED_NODES", trashcanCleaner.getTotalDeletedNodesCount());
+                jResult.put("RETAINED_ROOTS", trashcanCleaner.getRetainedRootsCount());
+                jResult.put("FAST_PURGED_ROOTS", trashcanCleaner.getFastPurgedRootsCount());
+                jResult.put("NODE_PURGED_ROOTS", trashcanCleaner.getNodePurgedRootsCount());
+                jResult.put("QUARANTINED_NODES", trashcanCleaner.getQuarantinedNodesCount());
+                jResult.put("BATCH_SIZE", trashcanCleaner.getBatchSize());
+                jResult.put("CURRENT_NODES_PER_SECOND", trashcanCleaner.getCurrentNodesPerSecond());
+                jResult.put("CURRENT_TRANSACTIONS_PER_SECOND", trashcanCleaner.getCurrentTransactionsPerSecond());
             }
             catch (JSONException e1)
             {
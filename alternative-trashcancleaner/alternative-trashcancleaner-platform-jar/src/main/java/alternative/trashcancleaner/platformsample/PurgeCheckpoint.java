@@ -0,0 +1,178 @@
+package alternative.trashcancleaner.platformsample;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Position reached by a run that did not read the bin to the end, so the next run resumes from it.
+ * <p>
+ * Stored with the {@link AttributeService} under ("alt.trashcan.cleaner", "checkpoint", partition): the
+ * cursor of the candidate source before the page being purged, and the totals of the runs since the bin was
+ * last read to the end. The page is read again on resume, nodes already deleted are gone and nodes kept are
+ * in the retained nodes index, a root stopped midway is planned again from the nodes left. The checkpoint is
+ * dropped when the candidate source or the configuration fingerprint changes.
+ * @author Philippe
+ *
+ */
+class PurgeCheckpoint
+{
+    private static final Log logger = LogFactory.getLog(PurgeCheckpoint.class);
+
+    static final String ATTR_CHECKPOINT = "checkpoint";
+    private static final String KEY = "key";
+    private static final String CURSOR = "cursor";
+    private static final String DELETED_NODES = "deletedNodes";
+    private static final String RETAINED_ROOTS = "retainedRoots";
+    private static final String RUNS = "runs";
+    private static final String STARTED = "started";
+
+    private final AttributeService attributeService;
+    private final TransactionService transactionService;
+    private final boolean persistent;
+    // a checkpoint per partition, whichever cluster member purges it
+    private final int partition;
+
+    private String key = "";
+    // loaded from the previous run, null when starting from the oldest node
+    private String cursor = null;
+    private long deletedNodes = 0L;
+    private long retainedRoots = 0L;
+    private int runs = 0;
+    private Date started = null;
+
+    /**
+     * @param persistent false to always start from the oldest node
+     * @param partition partition of the candidates the checkpoint is for
+     */
+    PurgeCheckpoint(AttributeService attributeService, TransactionService transactionService, boolean persistent,
+            int partition)
+    {
+        this.attributeService = attributeService;
+        this.transactionService = transactionService;
+        this.persistent = persistent && attributeService != null;
+        this.partition = partition;
+    }
+
+    /**
+     * Load the checkpoint left by the previous run, ignored if it has been taken with another key
+     *
+     * @param key candidate source and configuration the cursor is valid for
+     */
+    void open(String key)
+    {
+        this.key = key;
+        this.cursor = null;
+        this.deletedNodes = 0L;
+        this.retainedRoots = 0L;
+        this.runs = 0;
+        this.started = new Date();
+        if (!persistent)
+            return;
+
+        Serializable value = transactionService.getRetryingTransactionHelper().doInTransaction(
+                new RetryingTransactionCallback<Serializable>()
+                    {
+                        public Serializable execute() throws Exception
+                        {
+                            return attributeService.getAttribute(RetainedNodeRegistry.ATTR_APP, ATTR_CHECKPOINT,
+                                    partition);
+                        }
+                    }, true, true);
+        if (!(value instanceof Map))
+            return;
+        Map<?, ?> saved = (Map<?, ?>) value;
+        if (!key.equals(saved.get(KEY)))
+        {
+            logger.info("Checkpoint taken with another configuration, starting from the oldest node");
+            return;
+        }
+        cursor = (String) saved.get(CURSOR);
+        deletedNodes = toLong(saved.get(DELETED_NODES));
+        retainedRoots = toLong(saved.get(RETAINED_ROOTS));
+        runs = (int) toLong(saved.get(RUNS));
+        if (saved.get(STARTED) instanceof Date)
+        {
+            started = (Date) saved.get(STARTED);
+        }
+        logger.info("Resuming partition " + partition + " from checkpoint " + cursor + " after " + runs
+                + " runs since " + started + ", " + deletedNodes + " nodes deleted");
+    }
+
+    private static long toLong(Object value)
+    {
+        return (value instanceof Number) ? ((Number) value).longValue() : 0L;
+    }
+
+    /**
+     * @return cursor to give to the candidate source, null to start from the oldest node
+     */
+    String getCursor()
+    {
+        return cursor;
+    }
+
+    /**
+     * @return nodes deleted by the previous runs since the bin was last read to the end
+     */
+    long getDeletedNodes()
+    {
+        return deletedNodes;
+    }
+
+    /**
+     * Persist where the run stopped
+     *
+     * @param pageCursor cursor before the page being purged
+     * @param runDeletedNodes nodes deleted by this run
+     * @param runRetainedRoots roots kept by this run
+     */
+    void save(String pageCursor, long runDeletedNodes, long runRetainedRoots)
+    {
+        if (!persistent)
+            return;
+        final HashMap<String, Serializable> saved = new HashMap<String, Serializable>();
+        saved.put(KEY, key);
+        saved.put(CURSOR, pageCursor);
+        saved.put(DELETED_NODES, deletedNodes + runDeletedNodes);
+        saved.put(RETAINED_ROOTS, retainedRoots + runRetainedRoots);
+        saved.put(RUNS, runs + 1);
+        saved.put(STARTED, started);
+        transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Object>()
+            {
+                public Object execute() throws Exception
+                {
+                    attributeService.setAttribute(saved, RetainedNodeRegistry.ATTR_APP, ATTR_CHECKPOINT, partition);
+                    return null;
+                }
+            }, false, true);
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Checkpoint saved: " + saved);
+        }
+    }
+
+    /**
+     * The bin has been read to the end, next run starts from the oldest node
+     */
+    void clear()
+    {
+        if (!persistent)
+            return;
+        transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Object>()
+            {
+                public Object execute() throws Exception
+                {
+                    attributeService.removeAttribute(RetainedNodeRegistry.ATTR_APP, ATTR_CHECKPOINT, partition);
+                    return null;
+                }
+            }, false, true);
+    }
+}
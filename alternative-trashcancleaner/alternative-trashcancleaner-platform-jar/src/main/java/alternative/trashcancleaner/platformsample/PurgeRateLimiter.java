@@ -0,0 +1,238 @@
+package alternative.trashcancleaner.platformsample;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of nodes deleted and of purge transactions per second, all workers together.
+ * <p>
+ * Each limit is a token bucket holding at most one second of tokens. A transaction takes its tokens before
+ * it starts, the bucket may go below zero and the transaction then waits for the tokens it owes, so a batch
+ * larger than the rate is allowed at the pace of the rate. The limits can be changed by time of day with
+ * windows "HH:mm-HH:mm=nodes/transactions" separated by commas, a window may span midnight. A limit of 0
+ * means no limit. Changing the limits keeps the tokens of the buckets, so a change does not allow a burst.
+ * @author Philippe
+ *
+ */
+class PurgeRateLimiter
+{
+    private Rate defaultRate;
+    private List<Window> windows;
+    private final TokenBucket nodes = new TokenBucket();
+    private final TokenBucket transactions = new TokenBucket();
+
+    /**
+     * @param nodesPerSecond limit outside the windows, 0 for no limit
+     * @param transactionsPerSecond limit outside the windows, 0 for no limit
+     * @param windows limits by time of day, empty or null for none
+     * @throws IllegalArgumentException if a window can not be parsed
+     */
+    PurgeRateLimiter(double nodesPerSecond, double transactionsPerSecond, String windows)
+    {
+        this.defaultRate = new Rate(nodesPerSecond, transactionsPerSecond);
+        this.windows = parseWindows(windows);
+    }
+
+    /**
+     * Change the limits, the tokens taken so far are kept
+     *
+     * @throws IllegalArgumentException if a window can not be parsed, the limits are then left unchanged
+     */
+    synchronized void setLimits(double nodesPerSecond, double transactionsPerSecond, String windows)
+    {
+        List<Window> parsed = parseWindows(windows);
+        this.defaultRate = new Rate(nodesPerSecond, transactionsPerSecond);
+        this.windows = parsed;
+    }
+
+    private static List<Window> parseWindows(String windows)
+    {
+        List<Window> parsed = new ArrayList<Window>();
+        if (windows == null || windows.trim().isEmpty())
+            return parsed;
+        for (String window : windows.split(","))
+        {
+            String[] rangeAndRate = window.trim().split("=");
+            String[] range = (rangeAndRate.length == 2) ? rangeAndRate[0].split("-") : new String[0];
+            String[] rate = (rangeAndRate.length == 2) ? rangeAndRate[1].split("/") : new String[0];
+            if (range.length != 2 || rate.length != 2)
+            {
+                throw new IllegalArgumentException("Rate window must be HH:mm-HH:mm=nodes/transactions: " + window);
+            }
+            try
+            {
+                parsed.add(new Window(parseMinuteOfDay(range[0]), parseMinuteOfDay(range[1]), new Rate(
+                        Double.parseDouble(rate[0].trim()), Double.parseDouble(rate[1].trim()))));
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Rate window must be HH:mm-HH:mm=nodes/transactions: " + window);
+            }
+        }
+        return parsed;
+    }
+
+    private static int parseMinuteOfDay(String time)
+    {
+        String[] hourAndMinute = time.trim().split(":");
+        if (hourAndMinute.length != 2)
+            throw new NumberFormatException(time);
+        int hour = Integer.parseInt(hourAndMinute[0]);
+        int minute = Integer.parseInt(hourAndMinute[1]);
+        if (hour < 0 || hour > 24 || minute < 0 || minute > 59 || hour * 60 + minute > 24 * 60)
+            throw new NumberFormatException(time);
+        return hour * 60 + minute;
+    }
+
+    /**
+     * @return the limits in force at that time of day
+     */
+    synchronized Rate getRate(int minuteOfDay)
+    {
+        for (Window window : windows)
+        {
+            if (window.contains(minuteOfDay))
+                return window.rate;
+        }
+        return defaultRate;
+    }
+
+    Rate getRate()
+    {
+        return getRate(currentMinuteOfDay());
+    }
+
+    private static int currentMinuteOfDay()
+    {
+        Calendar now = Calendar.getInstance();
+        return now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+    }
+
+    /**
+     * Take the tokens of a transaction
+     *
+     * @param nodeCount number of nodes the transaction deletes
+     * @return milliseconds to wait before starting the transaction
+     */
+    long reserve(int nodeCount)
+    {
+        return reserve(nodeCount, currentMinuteOfDay(), System.nanoTime());
+    }
+
+    synchronized long reserve(int nodeCount, int minuteOfDay, long nowNanos)
+    {
+        Rate rate = getRate(minuteOfDay);
+        double waitSeconds = Math.max(nodes.reserve(nodeCount, rate.nodesPerSecond, nowNanos), transactions.reserve(
+                1, rate.transactionsPerSecond, nowNanos));
+        return (long) Math.ceil(waitSeconds * 1000d);
+    }
+
+    /**
+     * Give back the node tokens of a transaction that deleted nothing, its nodes are charged again by the
+     * transactions deleting them
+     *
+     * @param nodeCount number of nodes the transaction was charged
+     */
+    synchronized void release(int nodeCount)
+    {
+        nodes.release(nodeCount);
+    }
+
+    /**
+     * Nodes and transactions per second, 0 for no limit
+     */
+    static class Rate
+    {
+        private final double nodesPerSecond;
+        private final double transactionsPerSecond;
+
+        Rate(double nodesPerSecond, double transactionsPerSecond)
+        {
+            this.nodesPerSecond = Math.max(0d, nodesPerSecond);
+            this.transactionsPerSecond = Math.max(0d, transactionsPerSecond);
+        }
+
+        double getNodesPerSecond()
+        {
+            return nodesPerSecond;
+        }
+
+        double getTransactionsPerSecond()
+        {
+            return transactionsPerSecond;
+        }
+    }
+
+    /**
+     * Limits applied from a time of day to another, both in minutes since midnight, the end excluded
+     */
+    private static class Window
+    {
+        private final int from;
+        private final int to;
+        private final Rate rate;
+
+        Window(int from, int to, Rate rate)
+        {
+            this.from = from;
+            this.to = to;
+            this.rate = rate;
+        }
+
+        boolean contains(int minuteOfDay)
+        {
+            if (from <= to)
+                return from <= minuteOfDay && minuteOfDay < to;
+            // spans midnight
+            return minuteOfDay >= from || minuteOfDay < to;
+        }
+    }
+
+    /**
+     * Bucket refilled at the current rate up to one second of tokens, the rate may change between two calls
+     */
+    private static class TokenBucket
+    {
+        private double tokens = 0d;
+        private long lastRefill = 0L;
+        // rate of the last call, 0 when it was not limited
+        private double lastRate = 0d;
+
+        /**
+         * @return seconds to wait for the tokens taken
+         */
+        double reserve(int permits, double ratePerSecond, long nowNanos)
+        {
+            if (ratePerSecond <= 0d)
+            {
+                lastRate = 0d;
+                return 0d;
+            }
+            double capacity = Math.max(1d, ratePerSecond);
+            if (lastRate <= 0d)
+            {
+                // limited from now on, starts full
+                tokens = capacity;
+            }
+            else
+            {
+                double elapsed = (nowNanos - lastRefill) / (double) TimeUnit.SECONDS.toNanos(1L);
+                tokens = Math.min(capacity, tokens + Math.max(0d, elapsed) * ratePerSecond);
+            }
+            lastRate = ratePerSecond;
+            lastRefill = nowNanos;
+            tokens -= permits;
+            return (tokens < 0d) ? -tokens / ratePerSecond : 0d;
+        }
+
+        void release(int permits)
+        {
+            if (lastRate > 0d)
+            {
+                tokens = Math.min(Math.max(1d, lastRate), tokens + permits);
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package alternative.trashcancleaner.platformsample;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Pool of threads purging distinct archived roots of a page concurrently.
+ * <p>
+ * Archived roots are independent subtrees, each task deletes one root in its own transactions and runs as
+ * system. The caller submits the roots of a page then waits for all of them before moving to the next page,
+ * so no more than a page of work is ever queued. With a single worker no thread is started and tasks run
+ * on the caller thread.
+ * @author Philippe
+ *
+ */
+class PurgeWorkers
+{
+    private static final Log logger = LogFactory.getLog(PurgeWorkers.class);
+
+    private static final long TERMINATION_MS = 5000L;
+
+    private final ExecutorService executor;
+    // tasks of the page being purged
+    private final List<Future<?>> pending = new ArrayList<Future<?>>();
+
+    PurgeWorkers(int workers)
+    {
+        if (workers > 1)
+        {
+            final AtomicInteger threadNumber = new AtomicInteger(1);
+            this.executor = Executors.newFixedThreadPool(workers, new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r, "TrashcanCleanerWorker-" + threadNumber.getAndIncrement());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+        else
+        {
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Run the task as system, in the pool or directly when there is a single worker
+     */
+    void submit(Runnable task)
+    {
+        final Runnable fTask = task;
+        final Runnable asSystem = new Runnable()
+            {
+                public void run()
+                {
+                    AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Object>()
+                        {
+                            public Object doWork() throws Exception
+                            {
+                                fTask.run();
+                                return null;
+                            }
+                        }, AuthenticationUtil.getSystemUserName());
+                }
+            };
+        if (executor == null)
+        {
+            asSystem.run();
+            return;
+        }
+        pending.add(executor.submit(asSystem));
+    }
+
+    /**
+     * Wait for every task submitted since the last call. All tasks are waited for even if one of them fails,
+     * the first failure is then thrown.
+     */
+    void awaitAll()
+    {
+        RuntimeException failure = null;
+        boolean interrupted = false;
+        for (Future<?> future : pending)
+        {
+            try
+            {
+                future.get();
+            }
+            catch (InterruptedException e)
+            {
+                // keep waiting, the tasks end by themselves once the cleaner is stopped
+                interrupted = true;
+            }
+            catch (ExecutionException e)
+            {
+                Throwable cause = e.getCause();
+                logger.error("Purge of an archived root failed", cause);
+                if (failure == null)
+                {
+                    failure = (cause instanceof RuntimeException) ? (RuntimeException) cause
+                            : new RuntimeException(cause);
+                }
+            }
+        }
+        pending.clear();
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    /**
+     * Release the threads, tasks not started yet are dropped. Running tasks are not interrupted
+     * in the middle of a transaction, they end on the cleaner status.
+     */
+    void shutdown()
+    {
+        if (executor == null)
+            return;
+        for (Future<?> future : pending)
+        {
+            future.cancel(false);
+        }
+        pending.clear();
+        executor.shutdown();
+        try
+        {
+            if (!executor.awaitTermination(TERMINATION_MS, TimeUnit.MILLISECONDS))
+            {
+                logger.warn("Purge workers still running after shutdown");
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package alternative.trashcancleaner.platformsample;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.attributes.AttributeService.AttributeQueryCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Persistent index of the archived roots the cleaner decided to keep.
+ * <p>
+ * Entries are stored with the {@link AttributeService} under
+ * ("alt.trashcan.cleaner", "retained", nodeRef) with the reason and the fingerprint of the
+ * configuration (protected types, nodes to skip, dictionary models) they were computed with.
+ * Nodes of the index are left out by the candidate query, up to a limit, and removed from the pages
+ * read before being evaluated. When the
+ * fingerprint changes the whole index is dropped and nodes are evaluated again. Entries of nodes no
+ * longer in the bin, restored or purged meanwhile, are dropped when the index is loaded.
+ * Nodes whose deletion failed on their own are quarantined in the same index, until the quarantine
+ * expires and they are tried again.
+ * @author Philippe
+ *
+ */
+class RetainedNodeRegistry
+{
+    private static final Log logger = LogFactory.getLog(RetainedNodeRegistry.class);
+
+    static final String ATTR_APP = "alt.trashcan.cleaner";
+    static final String ATTR_RETAINED = "retained";
+    static final String ATTR_FINGERPRINT = "retained.fingerprint";
+    private static final String SEPARATOR = "|";
+    // nodes of the index checked at once for existence
+    private static final int CHECK_BATCH_SIZE = 1000;
+
+    /**
+     * Why an archived root has been left in the bin
+     */
+    enum Reason
+    {
+        // sys:archived aspect or sys:archivedDate missing
+        NOT_ARCHIVED,
+        // protected type or in nodesToSkip
+        PROTECTED,
+        // contains a node that must be protected
+        PROTECTED_DESCENDANT,
+        // its deletion fails whatever the transaction
+        QUARANTINED,
+        // contains a quarantined node
+        QUARANTINED_DESCENDANT
+    }
+
+    private final AttributeService attributeService;
+    private final TransactionService transactionService;
+    private final NodeDAO nodeDAO;
+    private final boolean persistent;
+    // how long quarantined nodes are kept out of the candidates, 0 until the index is dropped
+    private final long quarantineMillis;
+
+    private final Map<NodeRef, Reason> retained = new ConcurrentHashMap<NodeRef, Reason>();
+    // decided during the current page, not yet persisted
+    private final Map<NodeRef, Reason> pending = new ConcurrentHashMap<NodeRef, Reason>();
+    private String fingerprint = "";
+
+    /**
+     * @param nodeDAO checks the nodes of the index are still in the bin, null to keep them all
+     * @param persistent false to only remember retained nodes during the run
+     * @param quarantineMillis time after which quarantined nodes are tried again, 0 to keep them until the
+     *            index is dropped
+     */
+    RetainedNodeRegistry(AttributeService attributeService, TransactionService transactionService, NodeDAO nodeDAO,
+            boolean persistent, long quarantineMillis)
+    {
+        this.attributeService = attributeService;
+        this.transactionService = transactionService;
+        this.nodeDAO = nodeDAO;
+        this.persistent = persistent && attributeService != null;
+        this.quarantineMillis = quarantineMillis;
+    }
+
+    /**
+     * Load the index, or drop it if it has been built with another configuration
+     * 
+     * @param fingerprint fingerprint of the current configuration
+     */
+    void open(String fingerprint)
+    {
+        this.fingerprint = fingerprint;
+        retained.clear();
+        pending.clear();
+        if (!persistent)
+            return;
+
+        final String fFingerprint = fingerprint;
+        RetryingTransactionCallback<Integer> loadWork = new RetryingTransactionCallback<Integer>()
+            {
+                public Integer execute() throws Exception
+                {
+                    retained.clear();
+                    final List<String> stale = new ArrayList<String>();
+                    Serializable previous = attributeService.getAttribute(ATTR_APP, ATTR_FINGERPRINT);
+                    if (!fFingerprint.equals(previous))
+                    {
+                        // configuration or model changed, everything has to be checked again
+                        attributeService.removeAttributes(ATTR_APP, ATTR_RETAINED);
+                        attributeService.setAttribute(fFingerprint, ATTR_APP, ATTR_FINGERPRINT);
+                        return -1;
+                    }
+                    attributeService.getAttributes(new AttributeQueryCallback()
+                        {
+                            public boolean handleAttribute(Long id, Serializable value, Serializable[] keys)
+                            {
+                                if (keys.length != 3)
+                                    return true;
+                                // quarantine over, the node is evaluated and deleted again
+                                Reason reason = isExpired(value) ? null : parse(value);
+                                if (reason == null)
+                                {
+                                    stale.add((String) keys[2]);
+                                }
+                                else
+                                {
+                                    retained.put(new NodeRef((String) keys[2]), reason);
+                                }
+                                return true;
+                            }
+                        }, ATTR_APP, ATTR_RETAINED);
+                    // restored or purged by hand since they were retained
+                    for (NodeRef nodeRef : findMissing(retained.keySet()))
+                    {
+                        retained.remove(nodeRef);
+                        stale.add(nodeRef.toString());
+                    }
+                    for (String nodeRef : stale)
+                    {
+                        attributeService.removeAttribute(ATTR_APP, ATTR_RETAINED, nodeRef);
+                    }
+                    if (!stale.isEmpty() && logger.isDebugEnabled())
+                    {
+                        logger.debug("Stale retained nodes removed: " + stale.size());
+                    }
+                    return retained.size();
+                }
+            };
+        int loaded = transactionService.getRetryingTransactionHelper().doInTransaction(loadWork, false, true);
+        if (logger.isDebugEnabled())
+        {
+            logger.debug(loaded < 0 ? "Retained nodes index reset, fingerprint: " + fingerprint
+                    : "Retained nodes loaded: " + loaded);
+        }
+    }
+
+    /**
+     * @return nodes of the index no longer in the archive store
+     */
+    private List<NodeRef> findMissing(Collection<NodeRef> nodeRefs)
+    {
+        List<NodeRef> missing = new ArrayList<NodeRef>();
+        if (nodeDAO == null)
+            return missing;
+        List<NodeRef> all = new ArrayList<NodeRef>(nodeRefs);
+        for (int from = 0; from < all.size(); from += CHECK_BATCH_SIZE)
+        {
+            List<NodeRef> batch = all.subList(from, Math.min(from + CHECK_BATCH_SIZE, all.size()));
+            nodeDAO.cacheNodes(batch);
+            for (NodeRef nodeRef : batch)
+            {
+                if (nodeDAO.getNodePair(nodeRef) == null)
+                {
+                    missing.add(nodeRef);
+                }
+            }
+        }
+        return missing;
+    }
+
+    boolean isRetained(NodeRef nodeRef)
+    {
+        return retained.containsKey(nodeRef);
+    }
+
+    /**
+     * @param max maximum number of nodes returned
+     * @return nodes of the index, to be left out by the candidate query
+     */
+    Set<NodeRef> getRetained(int max)
+    {
+        Set<NodeRef> nodes = new HashSet<NodeRef>();
+        for (NodeRef nodeRef : retained.keySet())
+        {
+            if (nodes.size() >= max)
+                break;
+            nodes.add(nodeRef);
+        }
+        return nodes;
+    }
+
+    /**
+     * @return nodes of the page not in the index
+     */
+    List<NodeRef> filter(List<NodeRef> page)
+    {
+        if (retained.isEmpty())
+            return page;
+        List<NodeRef> filtered = new ArrayList<NodeRef>(page.size());
+        for (NodeRef nodeRef : page)
+        {
+            if (!retained.containsKey(nodeRef))
+            {
+                filtered.add(nodeRef);
+            }
+        }
+        return filtered;
+    }
+
+    /**
+     * Record that an archived root is left in the bin, persisted on next {@link #flush()}
+     */
+    void retain(NodeRef nodeRef, Reason reason)
+    {
+        retained.put(nodeRef, reason);
+        pending.put(nodeRef, reason);
+    }
+
+    /**
+     * Persist the nodes retained since the last call
+     */
+    void flush()
+    {
+        if (!persistent || pending.isEmpty())
+        {
+            pending.clear();
+            return;
+        }
+        final List<Map.Entry<NodeRef, Reason>> toWrite = new ArrayList<Map.Entry<NodeRef, Reason>>(pending.entrySet());
+        pending.clear();
+        final long expiry = System.currentTimeMillis() + quarantineMillis;
+        RetryingTransactionCallback<Object> writeWork = new RetryingTransactionCallback<Object>()
+            {
+                public Object execute() throws Exception
+                {
+                    for (Map.Entry<NodeRef, Reason> entry : toWrite)
+                    {
+                        String value = entry.getValue().name() + SEPARATOR + fingerprint;
+                        if (quarantineMillis > 0 && isQuarantine(entry.getValue()))
+                        {
+                            value += SEPARATOR + expiry;
+                        }
+                        attributeService.setAttribute(value, ATTR_APP, ATTR_RETAINED, entry.getKey().toString());
+                    }
+                    return null;
+                }
+            };
+        transactionService.getRetryingTransactionHelper().doInTransaction(writeWork, false, true);
+    }
+
+    private static boolean isQuarantine(Reason reason)
+    {
+        return reason == Reason.QUARANTINED || reason == Reason.QUARANTINED_DESCENDANT;
+    }
+
+    /**
+     * @return true if the entry is a quarantine whose expiry is over
+     */
+    static boolean isExpired(Serializable value)
+    {
+        if (!(value instanceof String))
+            return false;
+        String[] parts = ((String) value).split("\\" + SEPARATOR);
+        if (parts.length != 3)
+            return false;
+        try
+        {
+            return Long.parseLong(parts[2]) <= System.currentTimeMillis();
+        }
+        catch (NumberFormatException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * @return reason of an entry computed with the current fingerprint, null otherwise
+     */
+    private Reason parse(Serializable value)
+    {
+        if (!(value instanceof String))
+            return null;
+        // REASON|fingerprint, followed by |expiry for a quarantine
+        String[] parts = ((String) value).split("\\" + SEPARATOR);
+        if (parts.length < 2 || !fingerprint.equals(parts[1]))
+            return null;
+        try
+        {
+            return Reason.valueOf(parts[0]);
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package alternative.trashcancleaner.platformsample;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.search.LimitBy;
+import org.alfresco.service.cmr.search.QueryConsistency;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.ResultSetRow;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.ISO8601DateFormat;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Cursor based (keyset) iteration over the nodes of the archive store.
+ * <p>
+ * Results are sorted on (sys:archivedDate, sys:node-dbid). The key of the last node returned is
+ * remembered and the next page only asks for nodes sorted after it, so the cost of a page does not
+ * depend on how deep into the bin the run is. Nodes left in the bin (protected, skipped...) are
+ * passed by the cursor and never have to be counted.
+ * <p>
+ * Must be called inside a transaction.
+ * @author Philippe
+ *
+ */
+class SearchCandidateSource implements CandidateSource
+{
+    private static final Log logger = LogFactory.getLog(SearchCandidateSource.class);
+
+    private static final StoreRef ARCHIVE_STORE_REF = new StoreRef("archive", "SpacesStore");
+    private static final String ARCHIVED_DATE_FIELD = "sys:archivedDate";
+    private static final String DBID_FIELD = "sys:node\\-dbid";
+    private static final String CURSOR_SEPARATOR = "|";
+
+    private final NodeService nodeService;
+    private final SearchService searchService;
+    private final String baseQuery;
+
+    // nodes archived after this date are still protected, they are never returned
+    private Date cutoff = null;
+
+    // "AND NOT ..." clauses for the excluded types and nodes
+    private String exclusions = "";
+
+    // key of the last node returned, null before the first page
+    private Date lastArchivedDate = null;
+    private Long lastDbId = null;
+
+    SearchCandidateSource(NodeService nodeService, SearchService searchService, String baseQuery)
+    {
+        this.nodeService = nodeService;
+        this.searchService = searchService;
+        this.baseQuery = baseQuery;
+    }
+
+    /**
+     * Restart iteration from the oldest node of the bin
+     */
+    private void reset()
+    {
+        lastArchivedDate = null;
+        lastDbId = null;
+    }
+
+    /**
+     * @return sys:archivedDate and sys:node-dbid of the last node returned
+     */
+    @Override
+    public String getCursor()
+    {
+        if (lastArchivedDate == null || lastDbId == null)
+            return null;
+        return ISO8601DateFormat.format(lastArchivedDate) + CURSOR_SEPARATOR + lastDbId;
+    }
+
+    @Override
+    public void setCursor(String cursor)
+    {
+        reset();
+        int idx = (cursor == null) ? -1 : cursor.lastIndexOf(CURSOR_SEPARATOR);
+        if (idx < 0)
+            return;
+        try
+        {
+            lastDbId = Long.valueOf(cursor.substring(idx + 1));
+            lastArchivedDate = ISO8601DateFormat.parse(cursor.substring(0, idx));
+        }
+        catch (RuntimeException e)
+        {
+            logger.warn("Invalid cursor " + cursor + ", restarting from the oldest node: " + e);
+            reset();
+        }
+    }
+
+    @Override
+    public void setCutoff(Date cutoff)
+    {
+        this.cutoff = cutoff;
+    }
+
+    @Override
+    public void setExclusions(Set<QName> excludedTypes, Set<NodeRef> excludedNodes)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (QName type : excludedTypes)
+        {
+            sb.append(" AND NOT EXACTTYPE:\"").append(type.toString()).append("\"");
+        }
+        for (NodeRef nodeRef : excludedNodes)
+        {
+            sb.append(" AND NOT ID:\"").append(nodeRef.toString()).append("\"");
+        }
+        this.exclusions = sb.toString();
+    }
+
+    /**
+     * The node id can not be filtered modulo the number of partitions in a query, every partition is returned
+     */
+    @Override
+    public void setPartition(int partitions, int partition)
+    {
+    }
+
+    @Override
+    public List<NodeRef> nextPage(int pageLen)
+    {
+        List<NodeRef> page = executeQuery(buildQuery(), pageLen);
+        if (page.size() > 0 && !advance(page))
+        {
+            // no key can be read back from the page, we can not move further
+            logger.warn("Unable to read cursor key from page, ending iteration");
+            return new ArrayList<NodeRef>(0);
+        }
+        return page;
+    }
+
+    /**
+     * Build the query restricted to nodes sorted after the cursor and archived before the cutoff,
+     * leaving out the excluded types and nodes.
+     * Nodes without sys:archivedDate can not be positioned and are left out.
+     */
+    String buildQuery()
+    {
+        StringBuilder sb = new StringBuilder(baseQuery);
+        sb.append(exclusions);
+        String upper = (cutoff == null) ? "MAX" : "\"" + ISO8601DateFormat.format(cutoff) + "\"";
+        if (lastArchivedDate == null)
+        {
+            sb.append(" AND ").append(ARCHIVED_DATE_FIELD).append(":[MIN TO ").append(upper).append("]");
+        }
+        else
+        {
+            String date = ISO8601DateFormat.format(lastArchivedDate);
+            sb.append(" AND (").append(ARCHIVED_DATE_FIELD).append(":<\"").append(date).append("\" TO ")
+                    .append(upper).append("]");
+            sb.append(" OR (").append(ARCHIVED_DATE_FIELD).append(":\"").append(date).append("\"");
+            sb.append(" AND ").append(DBID_FIELD).append(":<").append(lastDbId).append(" TO MAX]))");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Move the cursor to the last node of the page still carrying a key
+     *
+     * @return false if no key could be found in the page
+     */
+    private boolean advance(List<NodeRef> page)
+    {
+        for (int i = page.size() - 1; i >= 0; i--)
+        {
+            NodeRef nodeRef = page.get(i);
+            if (!nodeService.exists(nodeRef))
+                continue;
+            Date archivedDate = (Date) nodeService.getProperty(nodeRef, ContentModel.PROP_ARCHIVED_DATE);
+            Long dbId = (Long) nodeService.getProperty(nodeRef, ContentModel.PROP_NODE_DBID);
+            if (archivedDate != null && dbId != null)
+            {
+                lastArchivedDate = archivedDate;
+                lastDbId = dbId;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Run the query for one page only. The result size is capped to the page length so the search
+     * layer never materialises more than a page, rows are read lazily and bulk fetch is left off
+     * since node metadata is loaded afterwards by page.
+     */
+    private List<NodeRef> executeQuery(String query, int pageLen)
+    {
+        SearchParameters sp = new SearchParameters();
+        sp.addStore(ARCHIVE_STORE_REF);
+        sp.setLanguage(SearchService.LANGUAGE_FTS_ALFRESCO);
+        sp.setQueryConsistency(QueryConsistency.TRANSACTIONAL);
+        sp.addSort(ContentModel.PROP_ARCHIVED_DATE.toString(), true);
+        sp.addSort(ContentModel.PROP_NODE_DBID.toString(), true);
+        sp.setMaxItems(pageLen);
+        sp.setLimitBy(LimitBy.FINAL_SIZE);
+        sp.setLimit(pageLen);
+        sp.setBulkFetchEnabled(false);
+        sp.setQuery(query);
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Candidate query: " + query);
+        }
+        ResultSet results = searchService.query(sp);
+        try
+        {
+            List<NodeRef> nodeToClean = new ArrayList<NodeRef>(pageLen);
+            for (ResultSetRow row : results)
+            {
+                if (nodeToClean.size() >= pageLen)
+                    break;
+                nodeToClean.add(row.getNodeRef());
+            }
+            return nodeToClean;
+        }
+        finally
+        {
+            results.close();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package alternative.trashcancleaner.platformsample;
+
+import java.io.IOException;
+
+import alternative.trashcancleaner.platformsample.TrashcanCleaner;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.springframework.extensions.webscripts.AbstractWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+/**
+ * Webscript changing the rate limits of trashcan cleaner at runtime, parameters not given are left unchanged
+ * @author Philippe
+ *
+ */
+public class SetRate extends AbstractWebScript
+{
+    private static final Log logger = LogFactory.getLog(SetRate.class);
+
+    private TrashcanCleaner trashcanCleaner;
+    
+    public void setTrashcanCleaner(TrashcanCleaner trashcanCleaner)
+    {
+        this.trashcanCleaner = trashcanCleaner;
+    }
+
+    @Override
+    public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException
+    {
+            String sNodes = req.getParameter("nodes");
+            String sTransactions = req.getParameter("transactions");
+            String sWindows = req.getParameter("windows");
+            try
+            {
+                trashcanCleaner.setRate(
+                        (sNodes == null) ? trashcanCleaner.getNodesPerSecond() : Double.parseDouble(sNodes),
+                        (sTransactions == null) ? trashcanCleaner.getTransactionsPerSecond() : Double
+                                .parseDouble(sTransactions),
+                        (sWindows == null) ? trashcanCleaner.getRateWindows() : sWindows);
+            }
+            catch (IllegalArgumentException e)
+            {
+                // NumberFormatException included
+                throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Invalid rate: " + e.getMessage());
+            }
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Rate set to " + trashcanCleaner.getNodesPerSecond() + " nodes/s, "
+                        + trashcanCleaner.getTransactionsPerSecond() + " transactions/s, windows: "
+                        + trashcanCleaner.getRateWindows());
+            }
+            JSONObject jResult = new JSONObject();
+            try
+            {
+                jResult.put("NODES_PER_SECOND", trashcanCleaner.getNodesPerSecond());
+                jResult.put("TRANSACTIONS_PER_SECOND", trashcanCleaner.getTransactionsPerSecond());
+                jResult.put("RATE_WINDOWS", trashcanCleaner.getRateWindows());
+                jResult.put("CURRENT_NODES_PER_SECOND", trashcanCleaner.getCurrentNodesPerSecond());
+                jResult.put("CURRENT_TRANSACTIONS_PER_SECOND", trashcanCleaner.getCurrentTransactionsPerSecond());
+            }
+            catch (JSONException e1)
+            {
+                e1.printStackTrace();
+            }
+            res.getWriter().write(jResult.toString());        
+    }
+
+    
+}
@@ -0,0 +1,288 @@
+package alternative.trashcancleaner.platformsample;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+
+/**
+ * Deletion plan of an archived subtree.
+ * <p>
+ * The subtree is read once and the ids of the nodes that can be deleted are recorded in post-order, children
+ * before their parent. Deleting the plan in order only ever deletes leaves, consecutive slices of the plan
+ * are deleted in their own transactions and the plan remembers how far the deletion went.
+ * <p>
+ * The planned subtree of each node is the slice of the plan from its subtree start to the node itself, so a
+ * large plan can be split in branches of complete subtrees deleted concurrently, their ancestors after them.
+ * @author Philippe
+ *
+ */
+class SubtreePurgePlan
+{
+    private final NodeRef root;
+
+    // node ids in post-order
+    private long[] nodeIds = new long[16];
+    // index of the first planned descendant of each node, its own index for a leaf
+    private int[] subtreeStarts = new int[16];
+    private int size = 0;
+    // index of the next node to delete
+    private int position = 0;
+    // a node of the subtree must be kept, the root and its ancestors are not in the plan
+    private boolean protectedNodeFound = false;
+    // nodes whose deletion failed, left in the bin
+    private final List<NodeRef> quarantined = new ArrayList<NodeRef>(0);
+
+    SubtreePurgePlan(NodeRef root)
+    {
+        this.root = root;
+    }
+
+    NodeRef getRoot()
+    {
+        return root;
+    }
+
+    /**
+     * @return store of the subtree, nodes found elsewhere at deletion time have been restored meanwhile
+     */
+    StoreRef getStoreRef()
+    {
+        return root.getStoreRef();
+    }
+
+    void add(long nodeId)
+    {
+        add(nodeId, size);
+    }
+
+    /**
+     * @param subtreeStart size of the plan when the walk entered the node, its planned descendants follow
+     */
+    void add(long nodeId, int subtreeStart)
+    {
+        if (size == nodeIds.length)
+        {
+            nodeIds = Arrays.copyOf(nodeIds, size * 2);
+            subtreeStarts = Arrays.copyOf(subtreeStarts, size * 2);
+        }
+        subtreeStarts[size] = subtreeStart;
+        nodeIds[size++] = nodeId;
+    }
+
+    void setProtectedNodeFound()
+    {
+        protectedNodeFound = true;
+    }
+
+    boolean isProtectedNodeFound()
+    {
+        return protectedNodeFound;
+    }
+
+    /**
+     * Record a node of the plan that can not be deleted, the plan must be moved past it
+     */
+    void addQuarantined(NodeRef nodeRef)
+    {
+        quarantined.add(nodeRef);
+    }
+
+    List<NodeRef> getQuarantined()
+    {
+        return quarantined;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return number of nodes not deleted yet
+     */
+    int remaining()
+    {
+        return size - position;
+    }
+
+    boolean hasNext()
+    {
+        return position < size;
+    }
+
+    /**
+     * @param max maximum number of ids returned
+     * @return ids of the next nodes to delete, the position is not moved
+     */
+    List<Long> peekBatch(int max)
+    {
+        int end = Math.min(size, position + max);
+        List<Long> batch = new ArrayList<Long>(end - position);
+        for (int i = position; i < end; i++)
+        {
+            batch.add(nodeIds[i]);
+        }
+        return batch;
+    }
+
+    /**
+     * Move past nodes once their deletion has been committed
+     */
+    void advance(int count)
+    {
+        position = Math.min(size, position + count);
+    }
+
+    /**
+     * Split a plan not started yet in branches of at most maxBranchNodes nodes, each made of complete
+     * subtrees, so branches can be deleted concurrently. This plan keeps the nodes above the branches, in
+     * post-order, to be deleted once every branch is done.
+     * <p>
+     * The forests of the plan are scanned with an explicit stack: a tree small enough joins the current
+     * branch, the root of a larger tree stays in this plan and the forest of its children is scanned next.
+     * 
+     * @param maxBranchNodes largest number of nodes of a branch
+     * @return the branches, empty if the plan is small enough or has been started
+     */
+    List<SubtreePurgePlan> splitBranches(int maxBranchNodes)
+    {
+        List<SubtreePurgePlan> branches = new ArrayList<SubtreePurgePlan>();
+        if (position > 0 || size <= maxBranchNodes)
+            return branches;
+        boolean[] spine = new boolean[size];
+        // forests as [from, to) slices of the plan
+        Deque<int[]> forests = new ArrayDeque<int[]>();
+        forests.push(new int[] { 0, size });
+        while (!forests.isEmpty())
+        {
+            int[] forest = forests.pop();
+            // trees of the forest from the last one, each ends with its root
+            int branchEnd = forest[1];
+            int branchStart = forest[1];
+            int treeEnd = forest[1];
+            while (treeEnd > forest[0])
+            {
+                int treeStart = subtreeStarts[treeEnd - 1];
+                if (treeEnd - treeStart > maxBranchNodes)
+                {
+                    addBranch(branches, branchStart, branchEnd);
+                    spine[treeEnd - 1] = true;
+                    forests.push(new int[] { treeStart, treeEnd - 1 });
+                    branchEnd = treeStart;
+                }
+                else if (branchEnd - treeStart > maxBranchNodes)
+                {
+                    addBranch(branches, branchStart, branchEnd);
+                    branchEnd = treeEnd;
+                }
+                branchStart = treeStart;
+                treeEnd = treeStart;
+            }
+            addBranch(branches, branchStart, branchEnd);
+        }
+        // the nodes above the branches, already in post-order
+        int spineSize = 0;
+        for (int i = 0; i < size; i++)
+        {
+            if (spine[i])
+            {
+                nodeIds[spineSize] = nodeIds[i];
+                subtreeStarts[spineSize] = spineSize;
+                spineSize++;
+            }
+        }
+        size = spineSize;
+        return branches;
+    }
+
+    private void addBranch(List<SubtreePurgePlan> branches, int from, int to)
+    {
+        if (from >= to)
+            return;
+        SubtreePurgePlan branch = new SubtreePurgePlan(root);
+        for (int i = from; i < to; i++)
+        {
+            branch.add(nodeIds[i], subtreeStarts[i] - from);
+        }
+        branches.add(branch);
+    }
+
+    /**
+     * Node being visited by the planning walk, holds one page of the ids of its primary children
+     */
+    static class Frame
+    {
+        private final long nodeId;
+        // size of the plan when the node was entered
+        private final int planStart;
+        private List<Long> childPage = null;
+        private int childIndex = 0;
+        // id of the last child read, null before the first page
+        private Long lastChildId = null;
+        private boolean lastPage = false;
+        // false as soon as one child is kept
+        private boolean deletable = true;
+
+        Frame(long nodeId, int planStart)
+        {
+            this.nodeId = nodeId;
+            this.planStart = planStart;
+        }
+
+        long getNodeId()
+        {
+            return nodeId;
+        }
+
+        int getPlanStart()
+        {
+            return planStart;
+        }
+
+        boolean hasNextChild()
+        {
+            return childPage != null && childIndex < childPage.size();
+        }
+
+        long nextChild()
+        {
+            return childPage.get(childIndex++);
+        }
+
+        Long getLastChildId()
+        {
+            return lastChildId;
+        }
+
+        boolean isLastPage()
+        {
+            return lastPage;
+        }
+
+        void setChildPage(List<Long> childPage, boolean lastPage)
+        {
+            this.childPage = childPage;
+            this.childIndex = 0;
+            if (!childPage.isEmpty())
+            {
+                this.lastChildId = childPage.get(childPage.size() - 1);
+            }
+            this.lastPage = lastPage;
+        }
+
+        boolean isDeletable()
+        {
+            return deletable;
+        }
+
+        void setDeletable(boolean deletable)
+        {
+            this.deletable = deletable;
+        }
+    }
+}
@@ -1,63 +1,163 @@
 package alternative.trashcancleaner.platformsample;
 
+import java.nio.charset.Charset;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
 
 import org.alfresco.model.ContentModel;
+import org.alfresco.repo.dictionary.DictionaryDAO;
+import org.alfresco.repo.dictionary.DictionaryListener;
+import org.alfresco.repo.domain.node.NodeDAO;
 import org.alfresco.repo.lock.JobLockService;
 import org.alfresco.repo.lock.JobLockService.JobLockRefreshCallback;
 import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.policy.BehaviourFilter;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
 import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.attributes.AttributeService;
 import org.alfresco.service.cmr.dictionary.DictionaryService;
-import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.dictionary.ModelDefinition;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.cmr.repository.StoreRef;
-import org.alfresco.service.cmr.search.QueryConsistency;
-import org.alfresco.service.cmr.search.ResultSet;
-import org.alfresco.service.cmr.search.SearchParameters;
 import org.alfresco.service.cmr.search.SearchService;
 import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.service.namespace.QName;
 import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.Pair;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.TransactionTimedOutException;
 
-public class TrashcanCleaner
+public class TrashcanCleaner implements DictionaryListener
 {
 
     // private static final String ARCHIVE_SEARCH_STRING = "ASPECT:\"sys:archived\" AND TYPE:\"cm:content\"";
     private static final String ARCHIVE_SEARCH_STRING = "ASPECT:\"sys:archived\" ";
     private static final long LOCK_TTL = 30000L; // 30 sec
+    // longest sleep between two checks of the status while waiting for the rate limits
+    private static final long THROTTLE_SLICE_MS = 100L;
+    // most nodes left out by the candidate query itself, IN lists and boolean queries are limited
+    private static final int MAX_EXCLUDED_NODES = 500;
     private static final QName LOCK_QNAME = QName.createQName(NamespaceService.SYSTEM_MODEL_1_0_URI,
             "org.alfresco.repo.TrashcanCleaner");
+    static final String CANDIDATE_SOURCE_SEARCH = "search";
+    static final String CANDIDATE_SOURCE_CANNED_QUERY = "cannedquery";
+    static final String CANDIDATE_SOURCE_CHILD_ASSOCS = "childassocs";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static Log logger = LogFactory.getLog(TrashcanCleaner.class);
 
     private NodeService nodeService;
+    private NodeDAO nodeDAO;
+    private ChildNodesDAO childNodesDAO;
+    private AttributeService attributeService;
     private TransactionService transactionService;
     private DictionaryService dictionaryService;
+    private DictionaryDAO dictionaryDAO;
     private HashSet<QName> setToProtect = new HashSet<QName>();
+    // setToProtect and all the subtypes, null until computed
+    private volatile Set<QName> protectedTypeClosure = null;
 
     private HashSet<NodeRef> nodesToSkip = new HashSet<NodeRef>();
 
 
+    // remember across runs the archived roots that have been kept
+    private boolean persistRetainedNodes = false;
+    // days a node that can not be deleted stays out of the candidates before being tried again
+    private int quarantineDays = 7;
+    // resume a run stopped before the end of the bin where it stopped
+    private boolean persistCheckpoint = false;
+    // nodes deleted by the previous runs of the partitions resumed by the current (or last) run
+    private final AtomicLong resumedDeletedNodes = new AtomicLong();
+    // candidates split by node id, each partition purged under its own lock by one cluster member at a time
+    private int partitions = 1;
+    // the lock of the partition being purged has been lost, another member may take it over
+    private volatile boolean lockLost = false;
+
     private int protectedDays = 7;
     private int pageLen = 3;
+    // number of pages read ahead of the deletion, 0 to read pages on demand
+    private int prefetchDepth = 2;
+    // pipeline of the current run, null when not running
+    private volatile CandidatePrefetcher prefetcher = null;
+    // number of archived roots purged concurrently
+    private int workers = 1;
+    // threads deleting the branches of one large archived root, 1 to delete each root on a single thread
+    private int treeWorkers = 1;
+    // roots with more nodes than this are split in branches of at most this number of nodes
+    private int treeSplitNodes = 10000;
+    // number of child ids read at once for each level of a subtree, bounds the heap used on huge folders
+    private int childPageSize = 500;
+
+    // accounting of the current (or last) run, updated by the workers
+    private final AtomicLong deletedNodes = new AtomicLong();
+    private final AtomicLong retainedRoots = new AtomicLong();
+    private final AtomicLong fastPurgedRoots = new AtomicLong();
+    private final AtomicLong nodePurgedRoots = new AtomicLong();
+    private final AtomicLong quarantinedNodes = new AtomicLong();
+
+
+    private BehaviourFilter policyBehaviourFilter;
+    // behaviours of these classes are disabled in purge transactions when suppressPurgeBehaviours is set
+    private boolean suppressPurgeBehaviours = false;
+    private Set<QName> behavioursToSuppress = new HashSet<QName>();
+
+    // bounds of the number of nodes deleted in one transaction, and the commit time aimed at
+    private int minBatchSize = 100;
+    private int maxBatchSize = 5000;
+    private int initialBatchSize = 500;
+    private long targetCommitMs = 2000L;
+    private volatile AdaptiveBatchSizer batchSizer = new AdaptiveBatchSizer(minBatchSize, maxBatchSize,
+            initialBatchSize, targetCommitMs);
+    // largest clean subtree purged in one transaction from its root, 0 to always delete node by node
+    private int fastPurgeMaxNodes = 0;
+    // largest clean subtree sharing its transaction with other small roots, 0 to purge each root on its own
+    private int coalesceMaxNodes = 0;
     
-    // contains when cleaner started
-    private long startTime = 0L;
     // contains how long runner can work maximum.
     // default is 4 hours
     private long cleanerMaxRunningTime = 1000L * 60L * 60L * 4L;
+    // time budget of the current run
+    private volatile Deadline deadline = Deadline.NONE;
+    // runs the expiry of the time budgets of this cleaner, started by the first limited run
+    private ScheduledThreadPoolExecutor deadlineScheduler = null;
+    // rate limits, 0 for no limit, the windows override them by time of day
+    private double nodesPerSecond = 0d;
+    private double transactionsPerSecond = 0d;
+    private String rateWindows = "";
+    private final PurgeRateLimiter rateLimiter = new PurgeRateLimiter(0d, 0d, null);
     
     private SearchService searchService;
 
+    private ArchivedNodesCannedQueryFactory archivedNodesCannedQueryFactory;
+
+    // how candidates are enumerated, one of CANDIDATE_SOURCE_*
+    private String candidateSource = CANDIDATE_SOURCE_SEARCH;
+
     public TrashcanCleaner()
     {
         setToProtect.add(QName.createQName("{http://www.alfresco.org/model/site/1.0}site"));
@@ -68,6 +168,21 @@ public class TrashcanCleaner
         this.searchService = searchService;
     }
 
+    public void setArchivedNodesCannedQueryFactory(ArchivedNodesCannedQueryFactory archivedNodesCannedQueryFactory)
+    {
+        this.archivedNodesCannedQueryFactory = archivedNodesCannedQueryFactory;
+    }
+
+    /**
+     * @param candidateSource "search" (default), "cannedquery" or "childassocs"
+     */
+    public void setCandidateSource(String candidateSource)
+    {
+        if (candidateSource == null || candidateSource.length() == 0 || candidateSource.startsWith("$"))
+            return;
+        this.candidateSource = candidateSource.trim();
+    }
+
     public void setCleanerMaxRunningTime(long cleanerMaxRunningTime)
     {
         this.cleanerMaxRunningTime = cleanerMaxRunningTime;
@@ -78,16 +193,76 @@ public class TrashcanCleaner
         return this.cleanerMaxRunningTime;
     }
 
+    /**
+     * DISABLING is a disable received while a run is still ending, only the end of the run leaves it for DISABLED
+     */
     public enum Status
     {
-        RUNNING, STOPPING, STOPPED, DISABLED
+        RUNNING, STOPPING, STOPPED, DISABLING, DISABLED
+    }
+
+    /**
+     * Told of each change of the status, on the thread making it: the job, the stop timer or a webscript.
+     * Must return quickly.
+     */
+    public interface StatusListener
+    {
+        void statusChanged(Status previous, Status current);
     }
 
-    private Status status = Status.STOPPED;
+    // changed by compare and set only, read by the purge workers between two nodes
+    private final AtomicReference<Status> status = new AtomicReference<Status>(Status.STOPPED);
+    private final List<StatusListener> statusListeners = new CopyOnWriteArrayList<StatusListener>();
 
     public Status getStatus()
     {
-        return status;
+        return status.get();
+    }
+
+    public void addStatusListener(StatusListener listener)
+    {
+        statusListeners.add(listener);
+    }
+
+    public void removeStatusListener(StatusListener listener)
+    {
+        statusListeners.remove(listener);
+    }
+
+    /**
+     * Change the status if it is still the expected one
+     * 
+     * @return true if the status has been changed
+     */
+    private boolean transition(Status expected, Status next)
+    {
+        if (!status.compareAndSet(expected, next))
+            return false;
+        statusChanged(expected, next);
+        return true;
+    }
+
+    private void statusChanged(Status previous, Status current)
+    {
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Status changed from " + previous + " to " + current);
+        }
+        if (current == Status.STOPPING || current == Status.DISABLING || current == Status.DISABLED)
+        {
+            stopPrefetcher();
+        }
+        for (StatusListener listener : statusListeners)
+        {
+            try
+            {
+                listener.statusChanged(previous, current);
+            }
+            catch (RuntimeException e)
+            {
+                logger.warn("Status listener failed: " + e);
+            }
+        }
     }
     
     /**
@@ -96,12 +271,7 @@ public class TrashcanCleaner
      */
     public Status stop()
     {
-        
-        Status previousStatus = getStatus();
-        if (status == Status.RUNNING)
-        {
-            status = Status.STOPPING;
-        }
+        Status previousStatus = transition(Status.RUNNING, Status.STOPPING) ? Status.RUNNING : getStatus();
         if (logger.isDebugEnabled())
         {
             logger.debug("stop called, previous status: " + previousStatus);
@@ -110,32 +280,40 @@ public class TrashcanCleaner
     }
     
     /**
-     * It stops current execution.
-     * @return
+     * It stops current execution. The purge ends after the node being deleted, what has been deleted so far
+     * is committed. The status is DISABLING until the run is over, DISABLED when no run is going on.
+     * @return previous status
      */
     public Status Disable()
     {
-        Status previousStatus = this.getStatus();
+        Status previousStatus = getStatus();
+        // a run going on sets DISABLED itself once over
+        while (previousStatus != Status.DISABLING && previousStatus != Status.DISABLED)
+        {
+            Status next = (previousStatus == Status.STOPPED) ? Status.DISABLED : Status.DISABLING;
+            if (transition(previousStatus, next))
+                break;
+            previousStatus = getStatus();
+        }
         if (logger.isDebugEnabled())
         {
-            logger.debug("stop called, previous status: " + previousStatus);
+            logger.debug("Disable called, previous status: " + previousStatus);
         }
-        status = Status.DISABLED;
         return previousStatus;
     }
 
     /**
-     * It enables current execution.
-     * @return
+     * It enables current execution, only when disabled: while a run disabled is still ending (DISABLING) the
+     * call is refused and the cleaner stays disabled.
+     * @return previous status
      */
     public Status Enable()
     {
-        Status previousStatus = this.getStatus();
+        Status previousStatus = transition(Status.DISABLED, Status.STOPPED) ? Status.DISABLED : getStatus();
         if (logger.isDebugEnabled())
         {
             logger.debug("Enable called, previous status: " + previousStatus);
         }
-        status = Status.STOPPED;
         return previousStatus;
     }
 
@@ -146,9 +324,287 @@ public class TrashcanCleaner
         this.pageLen = pageLen;
     }
 
+    public void setPrefetchDepth(int prefetchDepth)
+    {
+        this.prefetchDepth = prefetchDepth;
+    }
+
+    /**
+     * @param workers number of archived roots purged concurrently, 1 to purge them on the job thread
+     */
+    public void setWorkers(int workers)
+    {
+        this.workers = Math.max(1, workers);
+    }
+
+    /**
+     * @param nodesPerSecond nodes deleted per second by all the workers outside the rate windows, 0 for no
+     *            limit
+     */
+    public void setNodesPerSecond(double nodesPerSecond)
+    {
+        setRate(nodesPerSecond, transactionsPerSecond, rateWindows);
+    }
+
+    /**
+     * @param transactionsPerSecond purge transactions per second of all the workers outside the rate windows,
+     *            0 for no limit
+     */
+    public void setTransactionsPerSecond(double transactionsPerSecond)
+    {
+        setRate(nodesPerSecond, transactionsPerSecond, rateWindows);
+    }
+
+    /**
+     * @param rateWindows limits by time of day, comma separated "HH:mm-HH:mm=nodes/transactions"
+     */
+    public void setRateWindows(String rateWindows)
+    {
+        setRate(nodesPerSecond, transactionsPerSecond, rateWindows);
+    }
+
+    /**
+     * Change the rate limits, a run in progress is slowed down or sped up from its next transaction
+     * 
+     * @param nodesPerSecond limit outside the windows, 0 for no limit
+     * @param transactionsPerSecond limit outside the windows, 0 for no limit
+     * @param rateWindows limits by time of day, comma separated "HH:mm-HH:mm=nodes/transactions"
+     * @throws IllegalArgumentException if the windows can not be parsed, the limits are then left unchanged
+     */
+    public synchronized void setRate(double nodesPerSecond, double transactionsPerSecond, String rateWindows)
+    {
+        String windows = (rateWindows == null) ? "" : rateWindows.trim();
+        // the tokens already taken are kept, a change of the limits does not allow a burst
+        rateLimiter.setLimits(nodesPerSecond, transactionsPerSecond, windows);
+        this.nodesPerSecond = nodesPerSecond;
+        this.transactionsPerSecond = transactionsPerSecond;
+        this.rateWindows = windows;
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Rate limits: " + nodesPerSecond + " nodes/s, " + transactionsPerSecond
+                    + " transactions/s, windows: " + windows);
+        }
+    }
+
+    public double getNodesPerSecond()
+    {
+        return nodesPerSecond;
+    }
+
+    public double getTransactionsPerSecond()
+    {
+        return transactionsPerSecond;
+    }
+
+    public String getRateWindows()
+    {
+        return rateWindows;
+    }
+
+    /**
+     * @return nodes per second allowed at this time of day, 0 without limit
+     */
+    public double getCurrentNodesPerSecond()
+    {
+        return rateLimiter.getRate().getNodesPerSecond();
+    }
+
+    /**
+     * @return transactions per second allowed at this time of day, 0 without limit
+     */
+    public double getCurrentTransactionsPerSecond()
+    {
+        return rateLimiter.getRate().getTransactionsPerSecond();
+    }
+
+    /**
+     * @param treeWorkers number of threads deleting the branches of one large archived root, 1 to disable
+     */
+    public void setTreeWorkers(int treeWorkers)
+    {
+        this.treeWorkers = Math.max(1, treeWorkers);
+    }
+
+    /**
+     * @param treeSplitNodes archived roots with more nodes are split in branches of at most this number of
+     *            nodes, deleted concurrently
+     */
+    public void setTreeSplitNodes(int treeSplitNodes)
+    {
+        this.treeSplitNodes = Math.max(1, treeSplitNodes);
+    }
+
+    /**
+     * @param childPageSize number of child ids read at once for each level of a subtree being planned
+     */
+    public void setChildPageSize(int childPageSize)
+    {
+        this.childPageSize = Math.max(1, childPageSize);
+    }
+
+    /**
+     * @param partitions number of partitions of the candidates, the same on every cluster member. 1 to purge
+     *            the whole bin under a single lock
+     */
+    public void setPartitions(int partitions)
+    {
+        this.partitions = Math.max(1, partitions);
+    }
+
+    /**
+     * @return number of nodes deleted by the current or last run
+     */
+    public long getDeletedNodesCount()
+    {
+        return deletedNodes.get();
+    }
+
+    /**
+     * @return number of nodes deleted by the current or last run and the runs it resumed
+     */
+    public long getTotalDeletedNodesCount()
+    {
+        return deletedNodes.get() + resumedDeletedNodes.get();
+    }
+
+    /**
+     * @return number of archived roots left in the bin by the current or last run
+     */
+    public long getRetainedRootsCount()
+    {
+        return retainedRoots.get();
+    }
+
+    /**
+     * @return number of archived roots purged in one transaction from their root in the current or last run
+     */
+    public long getFastPurgedRootsCount()
+    {
+        return fastPurgedRoots.get();
+    }
+
+    /**
+     * @return number of archived roots deleted node by node in the current or last run
+     */
+    public long getNodePurgedRootsCount()
+    {
+        return nodePurgedRoots.get();
+    }
+
+    /**
+     * @return number of nodes whose deletion failed and that have been quarantined in the current or last run
+     */
+    public long getQuarantinedNodesCount()
+    {
+        return quarantinedNodes.get();
+    }
+
+    public void setMinBatchSize(int minBatchSize)
+    {
+        this.minBatchSize = minBatchSize;
+        resetBatchSizer();
+    }
+
+    public void setMaxBatchSize(int maxBatchSize)
+    {
+        this.maxBatchSize = maxBatchSize;
+        resetBatchSizer();
+    }
+
+    public void setInitialBatchSize(int initialBatchSize)
+    {
+        this.initialBatchSize = initialBatchSize;
+        resetBatchSizer();
+    }
+
+    /**
+     * @param targetCommitMs transactions longer than that make the batch size shrink
+     */
+    public void setTargetCommitMs(long targetCommitMs)
+    {
+        this.targetCommitMs = targetCommitMs;
+        resetBatchSizer();
+    }
+
+    private void resetBatchSizer()
+    {
+        batchSizer = new AdaptiveBatchSizer(minBatchSize, maxBatchSize, initialBatchSize, targetCommitMs);
+    }
+
+    /**
+     * @return number of nodes the next purge transaction will delete
+     */
+    public int getBatchSize()
+    {
+        return batchSizer.getBatchSize();
+    }
+
+    /**
+     * @param fastPurgeMaxNodes largest subtree without protected node purged in one transaction
+     *            from its root, 0 to disable
+     */
+    public void setFastPurgeMaxNodes(int fastPurgeMaxNodes)
+    {
+        this.fastPurgeMaxNodes = fastPurgeMaxNodes;
+    }
+
+    /**
+     * @param coalesceMaxNodes largest subtree without protected node purged in a transaction shared with other
+     *            small roots of the page, 0 to disable
+     */
+    public void setCoalesceMaxNodes(int coalesceMaxNodes)
+    {
+        this.coalesceMaxNodes = coalesceMaxNodes;
+    }
+
+    /**
+     * Drop pages read ahead by the current run, if any. The producer is not interrupted nor waited for, the
+     * run does it when it ends.
+     */
+    private void stopPrefetcher()
+    {
+        CandidatePrefetcher current = prefetcher;
+        if (current != null)
+        {
+            current.stop();
+        }
+    }
+
     private JobLockService jobLockService;
 
     
+    public void setPolicyBehaviourFilter(BehaviourFilter policyBehaviourFilter)
+    {
+        this.policyBehaviourFilter = policyBehaviourFilter;
+    }
+
+    /**
+     * @param suppressPurgeBehaviours true to disable the behaviours to suppress while purging
+     */
+    public void setSuppressPurgeBehaviours(boolean suppressPurgeBehaviours)
+    {
+        this.suppressPurgeBehaviours = suppressPurgeBehaviours;
+    }
+
+    /**
+     * @param behavioursToSuppress comma separated QNames of the classes (types or aspects) whose behaviours
+     *            are disabled while purging when suppressPurgeBehaviours is set
+     */
+    public void setBehavioursToSuppress(String behavioursToSuppress)
+    {
+        if (behavioursToSuppress == null || behavioursToSuppress.startsWith("$"))
+            return;
+        Set<QName> classNames = new HashSet<QName>();
+        for (String v : behavioursToSuppress.split(","))
+        {
+            if (v.trim().length() > 0)
+            {
+                classNames.add(QName.createQName(v.trim()));
+            }
+        }
+        this.behavioursToSuppress = classNames;
+    }
+
     public void setNodesToSkip(String nodesToSkip)
     {
         if (nodesToSkip == null || nodesToSkip.length() == 0 || nodesToSkip.startsWith("$"))
@@ -173,6 +629,7 @@ public class TrashcanCleaner
             
             setToProtect.clear();
             setToProtect.add(QName.createQName("{http://www.alfresco.org/model/site/1.0}site"));
+            protectedTypeClosure = null;
             return;
         }
 
@@ -183,6 +640,7 @@ public class TrashcanCleaner
             setToProtect.add(QName.createQName(qStringName));
         }
         setToProtect.add(QName.createQName("{http://www.alfresco.org/model/site/1.0}site"));
+        protectedTypeClosure = null;
     }
 
     public void setDictionaryService(DictionaryService dictionaryService)
@@ -190,6 +648,53 @@ public class TrashcanCleaner
         this.dictionaryService = dictionaryService;
     }
 
+    /**
+     * @param dictionaryDAO notifies dictionary reloads, the protected types are then evaluated again
+     */
+    public void setDictionaryDAO(DictionaryDAO dictionaryDAO)
+    {
+        this.dictionaryDAO = dictionaryDAO;
+    }
+
+    public void init()
+    {
+        if (dictionaryDAO != null)
+        {
+            dictionaryDAO.registerListener(this);
+        }
+    }
+
+    /**
+     * Stop the scheduler thread of the run time limits when the application context is closed, pending expiry
+     * tasks are dropped. A later run starts a new one.
+     */
+    public synchronized void destroy()
+    {
+        if (deadlineScheduler != null)
+        {
+            deadlineScheduler.shutdownNow();
+            deadlineScheduler = null;
+        }
+    }
+
+    private synchronized ScheduledExecutorService getDeadlineScheduler()
+    {
+        if (deadlineScheduler != null)
+            return deadlineScheduler;
+        deadlineScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "TrashcanCleanerScheduler");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        // runs ending before their deadline do not leave their task in the queue
+        deadlineScheduler.setRemoveOnCancelPolicy(true);
+        return deadlineScheduler;
+    }
+
     /**
      * @param nodeService the nodeService to set
      */
@@ -199,31 +704,126 @@ public class TrashcanCleaner
     }
 
     /**
-     * @param transactionService the transactionService to set
+     * @param nodeDAO used to bulk load the metadata of each page
      */
-    public void setTransactionService(TransactionService transactionService)
+    public void setNodeDAO(NodeDAO nodeDAO)
     {
-        this.transactionService = transactionService;
+        this.nodeDAO = nodeDAO;
     }
 
     /**
-     * Return the set of types that needs to be imune against deletion
-     * 
-     * @return
+     * @param childNodesDAO reads the children of the subtrees to purge by pages
      */
-    Set<QName> getTypesToProtect()
+    public void setChildNodesDAO(ChildNodesDAO childNodesDAO)
     {
-        return setToProtect;
+        this.childNodesDAO = childNodesDAO;
     }
 
     /**
-     * @param protectedDays The protectedDays to set.
+     * @param attributeService stores the index of the nodes kept in the bin
      */
-    public void setProtectedDays(int protectedDays)
+    public void setAttributeService(AttributeService attributeService)
     {
-        this.protectedDays = protectedDays;
-        if (logger.isDebugEnabled())
-        {
+        this.attributeService = attributeService;
+    }
+
+    public void setPersistRetainedNodes(boolean persistRetainedNodes)
+    {
+        this.persistRetainedNodes = persistRetainedNodes;
+    }
+
+    /**
+     * @param quarantineDays days before the nodes that could not be deleted are tried again, 0 to keep them
+     *            until the configuration or the models change
+     */
+    public void setQuarantineDays(int quarantineDays)
+    {
+        this.quarantineDays = quarantineDays;
+    }
+
+    /**
+     * @param persistCheckpoint true to resume the next run where a run stopped before the end of the bin
+     */
+    public void setPersistCheckpoint(boolean persistCheckpoint)
+    {
+        this.persistCheckpoint = persistCheckpoint;
+    }
+
+    /**
+     * @param transactionService the transactionService to set
+     */
+    public void setTransactionService(TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    /**
+     * Return the types to protect and all their subtypes, computed once and kept
+     * until the dictionary or the types to protect change
+     * 
+     * @return
+     */
+    Set<QName> getProtectedTypeClosure()
+    {
+        Set<QName> closure = protectedTypeClosure;
+        if (closure == null)
+        {
+            Set<QName> types = new HashSet<QName>();
+            for (QName typeToProtect : getTypesToProtect())
+            {
+                types.add(typeToProtect);
+                Collection<QName> subTypes = dictionaryService.getSubTypes(typeToProtect, true);
+                if (subTypes != null)
+                {
+                    types.addAll(subTypes);
+                }
+            }
+            closure = Collections.unmodifiableSet(types);
+            protectedTypeClosure = closure;
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Protected types and subtypes: " + closure);
+            }
+        }
+        return closure;
+    }
+
+    @Override
+    public void onDictionaryInit()
+    {
+    }
+
+    @Override
+    public void afterDictionaryInit()
+    {
+        // models may have been added or removed
+        protectedTypeClosure = null;
+    }
+
+    @Override
+    public void afterDictionaryDestroy()
+    {
+        protectedTypeClosure = null;
+    }
+
+    /**
+     * Return the set of types that needs to be imune against deletion
+     * 
+     * @return
+     */
+    Set<QName> getTypesToProtect()
+    {
+        return setToProtect;
+    }
+
+    /**
+     * @param protectedDays The protectedDays to set.
+     */
+    public void setProtectedDays(int protectedDays)
+    {
+        this.protectedDays = protectedDays;
+        if (logger.isDebugEnabled())
+        {
             if (this.protectedDays > 0)
             {
                 logger.debug("Deleted items will be protected during " + protectedDays + " days");
@@ -244,8 +844,19 @@ public class TrashcanCleaner
      */
     protected boolean mustBeProtected(NodeRef nodeRef)
     {
-        //check the reference first then check the type
-        
+        return mustBeProtected(nodeRef, nodeService.getType(nodeRef));
+    }
+
+    /**
+     * Return true if type is equal or a subtype of the type to protect,
+     * the type being already known
+     * 
+     * @param nodeRef
+     * @param type type of nodeRef
+     * @return
+     */
+    protected boolean mustBeProtected(NodeRef nodeRef, QName type)
+    {
         if( this.nodesToSkip.contains(nodeRef))
         {
             if (logger.isDebugEnabled())
@@ -254,141 +865,479 @@ public class TrashcanCleaner
             }
             return true;
         }
-        
-        QName type = nodeService.getType(nodeRef);
-        Set<QName> typesToProtect = getTypesToProtect();
 
-        for (QName typeToPtotect : typesToProtect)
+        // the types to protect and all their subtypes, one lookup
+        if (getProtectedTypeClosure().contains(type))
         {
-            if (typeToPtotect.equals(type) == true || dictionaryService.isSubClass(type, typeToPtotect) == true)
+            if (logger.isDebugEnabled())
             {
-                if (logger.isDebugEnabled())
-                {
-                    logger.debug("Node " + nodeRef + " skiped because is type or subtype of: " + type);
-                }
-                return true;
+                logger.debug("Node " + nodeRef + " skiped because is type or subtype of a protected type: " + type);
             }
+            return true;
         }
         return false;
     }
     
     
-    int deleteRecursive(NodeRef nodeRef, int maxNumOfNodesInTransaction, MutableBoolean skip)
+    /**
+     * Check on the page snapshot that an archived root can be purged
+     * 
+     * @param root snapshot of the archived root
+     * @return why the root must be left in the bin, null if it can be purged
+     */
+    RetainedNodeRegistry.Reason getRetainReason(ArchivedNodeInfo root)
+    {
+        //before trying to prune, we test if the root none has aspect ASPECT_ARCHIVED
+        if (!root.hasAspect(ContentModel.ASPECT_ARCHIVED))
+        {
+            //issue a warning it does not look normal and skip it
+            logger.warn("Expected ASPECT_ARCHIVED on " + root.getNodeRef() + " to be present. Node skipped!");
+            return RetainedNodeRegistry.Reason.NOT_ARCHIVED;
+        }
+        if (mustBeProtected(root.getNodeRef(), root.getType()))
+        {
+            logger.warn("Node type protected: " + root.getNodeRef());
+            return RetainedNodeRegistry.Reason.PROTECTED;
+        }
+        //also testing ContentModel.PROP_ARCHIVED_DATE != null
+        if (root.getArchivedDate() == null)
+        {
+            //issue a warning it does not look normal and skip it
+            logger.warn("Expected PROP_ARCHIVED_DATE on " + root.getNodeRef() + " not null. Node skipped!");
+            return RetainedNodeRegistry.Reason.NOT_ARCHIVED;
+        }
+        return null;
+    }
+
+    /**
+     * Fingerprint of everything the decision to keep a node depends on:
+     * protected types, nodes to skip and the dictionary models
+     * 
+     * @return
+     */
+    String getConfigurationFingerprint()
+    {
+        CRC32 crc = new CRC32();
+        for (String type : new TreeSet<String>(toStrings(getTypesToProtect())))
+        {
+            crc.update(type.getBytes(UTF_8));
+        }
+        for (String nodeRef : new TreeSet<String>(toStrings(nodesToSkip)))
+        {
+            crc.update(nodeRef.getBytes(UTF_8));
+        }
+        for (QName model : new TreeSet<QName>(dictionaryService.getAllModels()))
+        {
+            crc.update(model.toString().getBytes(UTF_8));
+            long checksum = dictionaryService.getModel(model).getChecksum(ModelDefinition.XMLBindingType.DEFAULT);
+            crc.update(Long.toString(checksum).getBytes(UTF_8));
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    private static Set<String> toStrings(Set<?> values)
     {
-        final NodeRef fNodeREf = nodeRef;
-        final MutableBoolean fSkip = skip;
-        final int fMaxNumOfNodesInTransaction = maxNumOfNodesInTransaction;
-        final TrashcanCleaner fThis = this;
-        final RetryingTransactionCallback<Integer> recursiveWork = new RetryingTransactionCallback<Integer>()
+        Set<String> strings = new HashSet<String>(values.size());
+        for (Object value : values)
+        {
+            strings.add(value.toString());
+        }
+        return strings;
+    }
+
+    /**
+     * Read the subtree of an archived root once and plan its deletion leaves first.
+     * A node is planned when it is not protected and all its children are planned,
+     * children of a protected node are still deleted.
+     * <p>
+     * The walk is iterative (explicit stack, no recursion whatever the depth) and each level only holds
+     * one page of child ids, read with {@link ChildNodesDAO}.
+     * 
+     * @param nodeRef archived root
+     * @return the plan, null if the cleaner has been stopped meanwhile
+     */
+    SubtreePurgePlan planSubtree(NodeRef nodeRef)
+    {
+        List<SubtreePurgePlan> plans = planSubtrees(Collections.singletonList(nodeRef));
+        return (plans == null) ? null : plans.get(0);
+    }
+
+    /**
+     * Plan the subtrees of several archived roots in a single read-only transaction
+     * 
+     * @param nodeRefs archived roots
+     * @return the plans in the order of the roots, null if the cleaner has been stopped meanwhile
+     */
+    List<SubtreePurgePlan> planSubtrees(List<NodeRef> nodeRefs)
+    {
+        final List<NodeRef> fRoots = nodeRefs;
+        final RetryingTransactionCallback<List<SubtreePurgePlan>> planWork =
+                new RetryingTransactionCallback<List<SubtreePurgePlan>>()
             {
-                public Integer execute() throws Exception
+                public List<SubtreePurgePlan> execute() throws Exception
                 {
-                    
-                    if (!nodeService.exists(fNodeREf))
-                        return 0; // finished
-                    //before trying to prune, we test if the root none has aspect ASPECT_ARCHIVED
-                    if(!nodeService.hasAspect(fNodeREf, ContentModel.ASPECT_ARCHIVED))
+                    // new plans each time, the transaction may be retried
+                    List<SubtreePurgePlan> plans = new ArrayList<SubtreePurgePlan>(fRoots.size());
+                    for (NodeRef root : fRoots)
                     {
-                        //issue a warning it does not look normal and skip it
-                        logger.warn("Expected ASPECT_ARCHIVED on " + fNodeREf + " to be present. Node skipped!");
-                        fSkip.set(true);
-                        return 0; // do not delete it
+                        SubtreePurgePlan plan = walkSubtree(root);
+                        if (plan == null)
+                            return null;
+                        plans.add(plan);
                     }
-                    if (mustBeProtected(fNodeREf))
-                    {
-                        logger.warn("Node type protected: " + fNodeREf );
-                        fSkip.set(true);
+                    return plans;
+                }
+            };
+        return transactionService.getRetryingTransactionHelper().doInTransaction(planWork, true, true);
+    }
+
+    /**
+     * Plan one subtree, must be called inside a transaction
+     * 
+     * @return the plan, null if the cleaner has been stopped meanwhile
+     */
+    private SubtreePurgePlan walkSubtree(NodeRef root)
+    {
+        SubtreePurgePlan plan = new SubtreePurgePlan(root);
+        Pair<Long, NodeRef> rootPair = nodeDAO.getNodePair(root);
+        if (rootPair == null)
+            return plan; // nothing left to delete
+        Deque<SubtreePurgePlan.Frame> stack = new ArrayDeque<SubtreePurgePlan.Frame>();
+        stack.push(new SubtreePurgePlan.Frame(rootPair.getFirst(), 0));
+        while (!stack.isEmpty())
+        {
+            if (mustStop())
+                return null;
+            SubtreePurgePlan.Frame top = stack.peek();
+            Long childId = nextChild(top);
+            if (childId != null)
+            {
+                stack.push(new SubtreePurgePlan.Frame(childId, plan.size()));
+                continue;
+            }
+            // all the children of top have been visited
+            stack.pop();
+            Pair<Long, NodeRef> nodePair = nodeDAO.getNodePair(top.getNodeId());
+            // deleted meanwhile by another cluster member or from the UI, nothing to plan
+            if (nodePair == null && top.isDeletable())
+                continue;
+            boolean planned = top.isDeletable() && !mustBeProtected(nodePair, plan);
+            if (planned)
+            {
+                plan.add(top.getNodeId(), top.getPlanStart());
+            }
+            else if (!stack.isEmpty())
+            {
+                // a child kept keeps its parent
+                stack.peek().setDeletable(false);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * @return id of the next primary child of the frame node, reading the next page when needed,
+     *         null when all have been visited
+     */
+    private Long nextChild(SubtreePurgePlan.Frame frame)
+    {
+        if (!frame.hasNextChild() && !frame.isLastPage())
+        {
+            List<Long> page = childNodesDAO.getPrimaryChildNodeIds(frame.getNodeId(), frame.getLastChildId(),
+                    childPageSize);
+            frame.setChildPage(page, page.size() < childPageSize);
+        }
+        return frame.hasNextChild() ? frame.nextChild() : null;
+    }
+
+    private boolean mustBeProtected(Pair<Long, NodeRef> nodePair, SubtreePurgePlan plan)
+    {
+        // maybe we need to preserve it if specific type
+        // or specific nodeRef provided in configuration
+        if (mustBeProtected(nodePair.getSecond(), nodeDAO.getNodeType(nodePair.getFirst())))
+        {
+            plan.setProtectedNodeFound();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Purge the whole subtree in one transaction by deleting its root, the plan must not contain any protected
+     * node. The root is deleted in the transaction of the caller with its behaviours suppressed, not through
+     * NodeArchiveService which purges each root in a transaction of its own.
+     * 
+     * @param plan
+     * @return number of nodes deleted
+     */
+    int fastPurge(SubtreePurgePlan plan)
+    {
+        final SubtreePurgePlan fPlan = plan;
+        final RetryingTransactionCallback<Integer> purgeWork = new RetryingTransactionCallback<Integer>()
+            {
+                public Integer execute() throws Exception
+                {
+                    if (!nodeService.exists(fPlan.getRoot()))
                         return 0;
+                    boolean suppressed = disableBehaviours();
+                    try
+                    {
+                        // the archive store has no archive, the subtree is deleted for good
+                        nodeService.deleteNode(fPlan.getRoot());
                     }
-                    
-                    //also testing ContentModel.PROP_ARCHIVED_DATE != null
-                    Date archiveDate = (Date)nodeService.getProperty(fNodeREf, ContentModel.PROP_ARCHIVED_DATE);
-                    Date toDate = new Date(new Date().getTime() - (1000L * 60L * 60L * 24L * protectedDays));
-                    //System.out.println("archiveDate ===" + archiveDate + " toDate ===="  + toDate);
-                    
-                    if( archiveDate== null || archiveDate.after(toDate))
+                    finally
                     {
-                        //issue a warning it does not look normal and skip it
-                        logger.warn("Expected PROP_ARCHIVED_DATE on " + fNodeREf + " not null. Node skipped!");
-                        fSkip.set(true);
-                        return 0; // do not delete it
+                        if (suppressed)
+                            restoreBehaviours();
                     }
-                    
-                    //compare the dates
-                    //System.out.println("Before initial deleteRecursiveInternal!!!" + " archived date:" + archiveDate );
-                    return this.deleteRecursiveInternal(fNodeREf, fMaxNumOfNodesInTransaction);
+                    return fPlan.size();
                 }
+            };
+        int deleted = transactionService.getRetryingTransactionHelper().doInTransaction(purgeWork, false, true);
+        plan.advance(plan.size());
+        return deleted;
+    }
+
+    /**
+     * When suppressPurgeBehaviours is set, disable the behaviours of the allow-list for the current transaction
+     * 
+     * @return true if behaviours have been disabled and must be restored
+     */
+    private boolean disableBehaviours()
+    {
+        if (!suppressPurgeBehaviours || policyBehaviourFilter == null || behavioursToSuppress.isEmpty())
+            return false;
+        for (QName className : behavioursToSuppress)
+        {
+            policyBehaviourFilter.disableBehaviour(className);
+        }
+        return true;
+    }
+
+    private void restoreBehaviours()
+    {
+        for (QName className : behavioursToSuppress)
+        {
+            policyBehaviourFilter.enableBehaviour(className);
+        }
+    }
 
-                public int deleteRecursiveInternal(NodeRef nodeRef, int fMaxNumOfNodesInTransaction)
+    /**
+     * Delete the next nodes of the plan in one transaction and move the plan past them
+     * 
+     * @param plan
+     * @param maxNumOfNodesInTransaction
+     * @return number of nodes deleted
+     */
+    int deleteNextBatch(SubtreePurgePlan plan, int maxNumOfNodesInTransaction)
+    {
+        return deleteNextBatch(plan, maxNumOfNodesInTransaction, new AtomicInteger());
+    }
+
+    /**
+     * Delete the next nodes of the plan in one transaction sized by the batch sizer,
+     * and give the sizer the outcome of the transaction.
+     * <p>
+     * When the transaction fails for another reason than concurrency, the batch is split to find the nodes
+     * that can not be deleted, they are added to the quarantine of the plan and the other nodes are deleted.
+     *
+     * @param plan
+     * @return number of nodes deleted
+     */
+    int deleteNextBatch(SubtreePurgePlan plan)
+    {
+        AdaptiveBatchSizer sizer = batchSizer;
+        int size = sizer.getBatchSize();
+        // a short tail batch does not tell whether the size can be afforded
+        int actual = Math.min(size, plan.remaining());
+        // the wait is not part of the commit time given to the sizer, only the nodes left are charged
+        if (!throttle(actual))
+            return 0;
+        AtomicInteger attempts = new AtomicInteger();
+        long start = System.currentTimeMillis();
+        try
+        {
+            int deleted = deleteNextBatch(plan, size, attempts);
+            sizer.record(actual, System.currentTimeMillis() - start, Math.max(0, attempts.get() - 1), false);
+            return deleted;
+        }
+        catch (RuntimeException e)
+        {
+            if (RetryingTransactionHelper.extractRetryCause(e) != null)
+            {
+                // still conflicting once the retries are exhausted, the load is to blame
+                sizer.record(actual, System.currentTimeMillis() - start, Math.max(0, attempts.get() - 1), true);
+                throw e;
+            }
+            if (isInfrastructureFailure(e))
+            {
+                // every transaction would fail the same way, the run ends and the nodes are tried by the next one
+                throw e;
+            }
+            if (size <= 1)
+            {
+                // the failure has been reproduced by the node alone
+                quarantineNext(plan);
+                return 0;
+            }
+            // a node of the batch can not be deleted, the size of the batch is not to blame
+            logger.warn("Purge transaction failed on " + plan.getRoot() + ", isolating the failing nodes: " + e);
+            // nothing has been deleted, the halves are charged instead
+            rateLimiter.release(actual);
+            return isolateFailures(plan, size);
+        }
+    }
+
+    /**
+     * Delete the next nodes of the plan by halves until the nodes failing on their own are found:
+     * a node is only quarantined when deleting it alone in its own transaction fails as well, and
+     * never when the database or the connection pool is failing. Ancestors of a quarantined node
+     * fail as well and are quarantined the same way.
+     *
+     * @param plan
+     * @param size number of nodes whose transaction failed, at least 2
+     * @return number of nodes deleted
+     */
+    private int isolateFailures(SubtreePurgePlan plan, int size)
+    {
+        int deleted = 0;
+        for (int half : new int[] { size / 2, size - size / 2 })
+        {
+            // the failed batch may have been larger than what was left
+            int charged = Math.min(half, plan.remaining());
+            if (!plan.hasNext() || !throttle(charged))
+                break;
+            try
+            {
+                deleted += deleteNextBatch(plan, half);
+            }
+            catch (RuntimeException e)
+            {
+                if (RetryingTransactionHelper.extractRetryCause(e) != null || isInfrastructureFailure(e))
+                    throw e;
+                if (half > 1)
                 {
-                    if (!nodeService.exists(nodeRef))
-                        return 0; // finished
-                    if (fThis.getStatus() == Status.STOPPING || fThis.getStatus() == Status.DISABLED)
-                        return 0;
-                    List<ChildAssociationRef> allChildren = nodeService.getChildAssocs(nodeRef);
+                    // each node is charged once whatever the depth of the split
+                    rateLimiter.release(charged);
+                    deleted += isolateFailures(plan, half);
+                }
+                else
+                {
+                    quarantineNext(plan);
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Quarantine the next node of the plan, its deletion alone has just failed, and move the plan past it
+     */
+    private void quarantineNext(SubtreePurgePlan plan)
+    {
+        List<Long> batch = plan.peekBatch(1);
+        if (batch.isEmpty())
+            return;
+        NodeRef nodeRef = getNodeRef(batch.get(0));
+        if (nodeRef != null)
+        {
+            logger.error("Node can not be deleted, quarantined: " + nodeRef + " (archived root " + plan.getRoot()
+                    + ")");
+            plan.addQuarantined(nodeRef);
+            quarantinedNodes.incrementAndGet();
+        }
+        plan.advance(1);
+    }
 
-                    // if no child then delete the node, this is a leaf
-                    if (allChildren == null || allChildren.size() == 0)
+    /**
+     * @return true if the failure comes from the database, the connection pool or a timeout rather than from
+     *         the nodes deleted, any transaction would fail the same way
+     */
+    static boolean isInfrastructureFailure(Throwable e)
+    {
+        for (Throwable cause = e; cause != null; cause = (cause.getCause() == cause) ? null : cause.getCause())
+        {
+            if (cause instanceof TransientDataAccessException || cause instanceof DataAccessResourceFailureException
+                    || cause instanceof CannotCreateTransactionException
+                    || cause instanceof TransactionTimedOutException || cause instanceof SQLTransientException
+                    || cause instanceof SQLRecoverableException)
+                return true;
+        }
+        return false;
+    }
+
+    private NodeRef getNodeRef(long nodeId)
+    {
+        final long fNodeId = nodeId;
+        return transactionService.getRetryingTransactionHelper().doInTransaction(
+                new RetryingTransactionCallback<NodeRef>()
                     {
-                        
-                        // maybe we need to preserve it if specific type
-                        // or specific nodeRef provided in configuration
-                        //System.out.println(" ********* Before Delete *************************************************************");
-                        if (!mustBeProtected(nodeRef))
-                        {
-                            //System.out.println("Node deleted:" + nodeRef + " has aspect archived: " + nodeService.hasAspect(nodeRef, ContentModel.ASPECT_ARCHIVED) +
-                            //        " Name:" + nodeService.getProperty(nodeRef, ContentModel.PROP_NAME)
-                            // + " date:" + (Date)nodeService.getProperty(nodeRef, ContentModel.PROP_ARCHIVED_DATE));
-                            
-                            nodeService.deleteNode(nodeRef);
-                            // System.out.println(" ********* DELETED *************************************************************" + nodeRef);
-                            return 1;
-                        }
-                        else
+                        public NodeRef execute() throws Exception
                         {
-                            fSkip.set(true);
-                            return 0; // do not delete it
+                            Pair<Long, NodeRef> nodePair = nodeDAO.getNodePair(fNodeId);
+                            return nodePair == null ? null : nodePair.getSecond();
                         }
-                        
-                        
-
-                    }
+                    }, true, true);
+    }
 
-                    // recursive an iterate and count
-                    int sum = 0;
-                    for (ChildAssociationRef assoc : allChildren)
+    /**
+     * @param attempts incremented each time the transaction is run, retries included
+     */
+    private int deleteNextBatch(SubtreePurgePlan plan, int maxNumOfNodesInTransaction, final AtomicInteger attempts)
+    {
+        final List<Long> fBatch = plan.peekBatch(maxNumOfNodesInTransaction);
+        final StoreRef fStoreRef = plan.getStoreRef();
+        // nodes of the batch gone through by the last attempt, less than the batch when stopped
+        final AtomicInteger processed = new AtomicInteger();
+        final RetryingTransactionCallback<Integer> batchWork = new RetryingTransactionCallback<Integer>()
+            {
+                public Integer execute() throws Exception
+                {
+                    attempts.incrementAndGet();
+                    processed.set(0);
+                    nodeDAO.cacheNodesById(fBatch);
+                    int deleted = 0;
+                    boolean suppressed = disableBehaviours();
+                    try
                     {
-                        //System.out.println("Before deleteRecursiveInternal!!!");
-                        NodeRef parent = assoc.getParentRef();
-                        //System.out.println("Type parent: " + nodeService.getType(parent));
-                        sum += deleteRecursiveInternal(assoc.getChildRef(), fMaxNumOfNodesInTransaction);
-                        //System.out.println("After deleteRecursiveInternal Sum = " + sum);
-                        if (sum >= fMaxNumOfNodesInTransaction)
+                        for (Long nodeId : fBatch)
                         {
-                            break;
+                            // a stop lands between two nodes, the nodes deleted so far are committed
+                            if (mustStop())
+                                break;
+                            processed.incrementAndGet();
+                            Pair<Long, NodeRef> nodePair = nodeDAO.getNodePair(nodeId);
+                            // already gone, or restored since the plan was made
+                            if (nodePair == null || !fStoreRef.equals(nodePair.getSecond().getStoreRef()))
+                                continue;
+                            nodeService.deleteNode(nodePair.getSecond());
+                            deleted++;
                         }
                     }
-                    return sum;
+                    finally
+                    {
+                        if (suppressed)
+                            restoreBehaviours();
+                    }
+                    return deleted;
                 }
-
             };
-        return transactionService.getRetryingTransactionHelper().doInTransaction(recursiveWork, false,
-                true);
+        int deleted = transactionService.getRetryingTransactionHelper().doInTransaction(batchWork, false, true);
+        plan.advance(processed.get());
+        return deleted;
     }
+
     public void execute()
     {
-        String lockToken = null;
-        TimerTask stopTask = null;
-        Timer timer = new Timer();
-        final TrashcanCleaner fThis = this;
-        final AtomicBoolean keepGoing = new AtomicBoolean(true);
+        Deadline runDeadline = null;
+        boolean started = false;
         
         
-        if (this.getStatus() == Status.DISABLED ||  this.getStatus() == Status.RUNNING)
+        if (this.getStatus() != Status.STOPPED)
         {
             if (logger.isDebugEnabled())
             {
-                logger.debug("Trashcan RUNNING or DISABLED: " + this.getStatus());
+                logger.debug("Trashcan not STOPPED: " + this.getStatus());
             }
             return;
         }
@@ -400,8 +1349,85 @@ public class TrashcanCleaner
                 logger.debug("In trash can execte!!");
             }
 
-            // Lock
-            lockToken = jobLockService.getLock(LOCK_QNAME, LOCK_TTL);
+            // members start at different partitions, a partition locked by another member is passed
+            // and the partition of a member that lost its lock is taken over by the next one reaching it
+            int first = (partitions > 1) ? new Random().nextInt(partitions) : 0;
+            for (int i = 0; i < partitions; i++)
+            {
+                if (started && getStatus() != Status.RUNNING)
+                    break;
+                int partition = (first + i) % partitions;
+                QName lockQName = getLockQName(partition);
+                String lockToken;
+                try
+                {
+                    lockToken = jobLockService.getLock(lockQName, LOCK_TTL);
+                }
+                catch (LockAcquisitionException e)
+                {
+                    if (logger.isDebugEnabled())
+                    {
+                        logger.debug("Lock acquisition failed for partition " + partition + "!", e);
+                    }
+                    continue;
+                }
+
+                if (!started)
+                {
+                    if (!transition(Status.STOPPED, Status.RUNNING))
+                    {
+                        // disabled, or started by another thread, since the check above
+                        jobLockService.releaseLock(lockToken, lockQName);
+                        return;
+                    }
+                    started = true;
+                    resetCounters();
+
+                    // checked by the purge between transactions and nodes, the expiry task wakes up the waits
+                    runDeadline = new Deadline(cleanerMaxRunningTime,
+                            (cleanerMaxRunningTime > 0L) ? getDeadlineScheduler() : null);
+                    deadline = runDeadline;
+                    runDeadline.onExpiry(new Runnable()
+                        {
+                            public void run()
+                            {
+                                // stops the run if the purge did not notice it first
+                                mustStop();
+                            }
+                        });
+                }
+                purgePartition(partition, lockQName, lockToken);
+            }
+        }
+        finally
+        {
+            if (runDeadline != null)
+            {
+                runDeadline.cancel();
+                deadline = Deadline.NONE;
+            }
+            // a cleaner disabled meanwhile stays disabled
+            if (started && !transition(Status.RUNNING, Status.STOPPED)
+                    && !transition(Status.STOPPING, Status.STOPPED))
+            {
+                transition(Status.DISABLING, Status.DISABLED);
+            }
+        }
+    }
+
+    /**
+     * Purge a partition whose lock has just been acquired, then release the lock
+     * 
+     * @param partition
+     * @param lockQName lock of the partition
+     * @param lockToken
+     */
+    private void purgePartition(int partition, final QName lockQName, String lockToken)
+    {
+        final AtomicBoolean keepGoing = new AtomicBoolean(true);
+        lockLost = false;
+        try
+        {
             // Refresh to get callbacks
             JobLockRefreshCallback callback = new JobLockRefreshCallback()
                 {
@@ -410,10 +1436,12 @@ public class TrashcanCleaner
                     {
                         if (logger.isDebugEnabled())
                         {
-                            logger.debug("In trash can lockReleased!!");
+                            logger.debug("In trash can lockReleased!! " + lockQName);
                         }
                         keepGoing.set(false);
-                        status = Status.STOPPED;
+                        // the partition is left to the member taking the lock, the run goes on with the others
+                        lockLost = true;
+                        stopPrefetcher();
                     }
 
                     @Override
@@ -427,72 +1455,142 @@ public class TrashcanCleaner
                         return keepGoing.get();
                     }
                 };
-            jobLockService.refreshLock(lockToken, LOCK_QNAME, LOCK_TTL, callback);
-            status = Status.RUNNING;
-            
-            //start a timer to stop after getCleanerMaxRunningTime();
-            stopTask = new TimerTask()
-            { 
-
-                public void run()
-                {
-                    Status previousStatus = fThis.stop(); 
-                    if (logger.isDebugEnabled())
-                    {
-                        logger.debug("Stopping Timer task called, previous status" + previousStatus);
-                    }
-                }
-            };
-            
-          //sched(TimerTask task, long time, long period)
-          // scheduleAtFixedRate(TimerTask task, long delay, long period)
-          timer.scheduleAtFixedRate(stopTask,this.cleanerMaxRunningTime, this.cleanerMaxRunningTime); 
-            
-            this.startTime = System.currentTimeMillis();
+            jobLockService.refreshLock(lockToken, lockQName, LOCK_TTL, callback);
             if (logger.isDebugEnabled())
             {
-                logger.debug("Before Execute internal !");
+                logger.debug("Before Execute internal, partition " + partition + "/" + partitions);
             }
-            executeLocalInternal();
+            executeLocalInternal(partition);
             if (logger.isDebugEnabled())
             {
                 logger.debug("After Execute internal !");
             }
-            
-            //jobLockService.releaseLock(lockToken, LOCK_QNAME);
-        }
-        catch (LockAcquisitionException e)
-        {
-            
-            if (logger.isDebugEnabled())
-            {
-                logger.debug("Lock acquisition failed!", e);
-            }
-
         }
         finally
         {
-            if (logger.isDebugEnabled())
+            keepGoing.set(false); // Notify the refresh callback that we are done
+            try
             {
-                logger.debug("Finally before released lock !!");
+                jobLockService.releaseLock(lockToken, lockQName);
             }
-            timer.cancel();
-            keepGoing.set(false); // Notify the refresh callback that we are done
-            if (lockToken != null)
+            catch (LockAcquisitionException e)
             {
-                jobLockService.releaseLock(lockToken, LOCK_QNAME);
-                if (status != status.DISABLED)
-                   status = Status.STOPPED;
+                // lost meanwhile
                 if (logger.isDebugEnabled())
                 {
-                    logger.debug("After released lock !!");
+                    logger.debug("Lock already released: " + lockQName);
                 }
             }
+            lockLost = false;
+        }
+    }
+
+    /**
+     * @return lock of a partition, the historical single lock when the bin is not partitioned
+     */
+    private QName getLockQName(int partition)
+    {
+        if (partitions <= 1)
+            return LOCK_QNAME;
+        return QName.createQName(NamespaceService.SYSTEM_MODEL_1_0_URI, LOCK_QNAME.getLocalName() + ".partition"
+                + partition);
+    }
+
+    /**
+     * @return true if the root belongs to the partition, its node id modulo the number of partitions
+     */
+    private boolean isInPartition(ArchivedNodeInfo root, int partition)
+    {
+        if (partitions <= 1)
+            return true;
+        return root.exists() && root.getNodeId() % partitions == partition;
+    }
+
+    /**
+     * Wait for the rate limits before a purge transaction, the wait ends early when the run must stop
+     * 
+     * @param nodeCount number of nodes the transaction deletes
+     * @return false if the run must stop
+     */
+    private boolean throttle(int nodeCount)
+    {
+        long until = System.currentTimeMillis() + rateLimiter.reserve(nodeCount);
+        long left;
+        while (!mustStop() && (left = until - System.currentTimeMillis()) > 0)
+        {
+            try
+            {
+                Thread.sleep(Math.min(left, THROTTLE_SLICE_MS));
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return !mustStop();
+    }
+
+    /**
+     * @return true when the current run must end (stopped, disabled, out of time) or leave its partition
+     *         (lock lost)
+     */
+    boolean mustStop()
+    {
+        if (deadline.isExpired() && transition(Status.RUNNING, Status.STOPPING))
+        {
+            logger.info("Trashcan cleaner stopped after running " + cleanerMaxRunningTime + " ms");
+        }
+        Status current = status.get();
+        return current == Status.STOPPING || current == Status.DISABLING || current == Status.DISABLED || lockLost;
+    }
+
+    private void resetCounters()
+    {
+        deletedNodes.set(0L);
+        retainedRoots.set(0L);
+        fastPurgedRoots.set(0L);
+        nodePurgedRoots.set(0L);
+        quarantinedNodes.set(0L);
+        resumedDeletedNodes.set(0L);
+    }
 
+    /**
+     * Create the candidate source configured by "alt.trashcan.cleaner.candidatesource"
+     * 
+     * @return
+     */
+    CandidateSource createCandidateSource()
+    {
+        if (CANDIDATE_SOURCE_CANNED_QUERY.equalsIgnoreCase(candidateSource))
+        {
+            if (archivedNodesCannedQueryFactory != null)
+            {
+                return new CannedQueryCandidateSource(archivedNodesCannedQueryFactory);
+            }
+            logger.warn("No canned query factory configured, falling back to search candidate source");
+        }
+        else if (CANDIDATE_SOURCE_CHILD_ASSOCS.equalsIgnoreCase(candidateSource))
+        {
+            if (childNodesDAO != null)
+            {
+                return new ChildAssocCandidateSource(nodeDAO, childNodesDAO);
+            }
+            logger.warn("No child nodes DAO configured, falling back to search candidate source");
+        }
+        else if (!CANDIDATE_SOURCE_SEARCH.equalsIgnoreCase(candidateSource))
+        {
+            logger.warn("Unknown candidate source: " + candidateSource + ", using " + CANDIDATE_SOURCE_SEARCH);
         }
+        return new SearchCandidateSource(nodeService, searchService, ARCHIVE_SEARCH_STRING);
     }
 
-    private void executeLocalInternal()
+    /**
+     * Purge the roots of one partition of the candidates, the lock of the partition being held
+     * 
+     * @param partition
+     */
+    private void executeLocalInternal(int partition)
     {
         if (logger.isDebugEnabled())
         {
@@ -501,166 +1599,497 @@ public class TrashcanCleaner
         }
         if (this.protectedDays > 0)
         {
-            final MutableInteger fToSkip = new MutableInteger(0);
-            final TrashcanCleaner fTrashcanCleaner = this;
-            
-            final RetryingTransactionCallback<List<NodeRef>> getPage = new RetryingTransactionCallback<List<NodeRef>>()
+            // the cursor moves past every node returned, deleted or not,
+            // so no skip counter has to be maintained
+            final CandidateSource candidates = createCandidateSource();
+            // a run stopped before the end of the bin is resumed from the page it was purging
+            String fingerprint = getConfigurationFingerprint();
+            final PurgeCheckpoint runCheckpoint = new PurgeCheckpoint(attributeService, transactionService,
+                    persistCheckpoint, partition);
+            runCheckpoint.open(candidateSource + "|" + partitions + "|" + fingerprint);
+            candidates.setCursor(runCheckpoint.getCursor());
+            // nodes archived after toDate are excluded by the query itself
+            final Date toDate = new Date(new Date().getTime() - (1000L * 60L * 60L * 24L * protectedDays));
+            candidates.setCutoff(toDate);
+            // other partitions are left out by the query when the source can, they are filtered once read otherwise
+            candidates.setPartition(partitions, partition);
+
+            // nodes kept by previous runs are not evaluated again
+            final RetainedNodeRegistry retainedNodes = new RetainedNodeRegistry(attributeService, transactionService,
+                    nodeDAO, persistRetainedNodes, 1000L * 60L * 60L * 24L * quarantineDays);
+            retainedNodes.open(fingerprint);
+            // protected roots, nodes to skip and retained roots would only be rejected once read and take the
+            // place of purgeable roots in the pages, the query is kept short and the rest is filtered once read
+            Set<NodeRef> excludedNodes = new HashSet<NodeRef>();
+            for (NodeRef nodeToSkip : nodesToSkip)
             {
-                public List<NodeRef> execute() throws Exception
-                {
-                    System.out.println("******************* Skip value:" + fToSkip.value);
-                    List<NodeRef> pageElements = fTrashcanCleaner.executeQuery(new StoreRef("archive","SpacesStore"), searchService, ARCHIVE_SEARCH_STRING, fToSkip.value, pageLen);
-                    return pageElements;
-                }
-               };
+                if (excludedNodes.size() >= MAX_EXCLUDED_NODES)
+                    break;
+                excludedNodes.add(nodeToSkip);
+            }
+            excludedNodes.addAll(retainedNodes.getRetained(Math.max(0, MAX_EXCLUDED_NODES - excludedNodes.size())));
+            candidates.setExclusions(getProtectedTypeClosure(), excludedNodes);
 
-            // final AtomicBoolean keepGoing = new AtomicBoolean(true);
-            Boolean doMore = true;
+            // next pages are read in background while the current one is deleted
 
-            int iteration = 1;
-            do
+            CandidatePrefetcher pipeline = new CandidatePrefetcher(candidates, new ArchivedNodeInfoLoader(nodeDAO),
+                    retainedNodes, transactionService, pageLen, prefetchDepth);
+            PurgeWorkers purgeWorkers = new PurgeWorkers(workers);
+            // counters of the run cover every partition it purges
+            long deletedBefore = deletedNodes.get();
+            long retainedBefore = retainedRoots.get();
+            resumedDeletedNodes.addAndGet(runCheckpoint.getDeletedNodes());
+            this.prefetcher = pipeline;
+            pipeline.start();
+            boolean exhausted = false;
+            try
             {
-                if( this.getStatus() == Status.STOPPING || this.getStatus() == Status.DISABLED)
-                    break;
-                if (logger.isDebugEnabled())
-                {
-                    logger.debug("iteration =" + iteration);
-                }
-                iteration++;
-                List<NodeRef> pageElements = transactionService.getRetryingTransactionHelper().doInTransaction(getPage, false, true);
-                //System.out.println("Page element size = " + pageElements.size());
-                if( pageElements.size() == 0 )
-                   break;
-                Date toDate = new Date(new Date().getTime() - (1000L * 60L * 60L * 24L * protectedDays));
-                // display the page
-                for (NodeRef nodeRef : pageElements)
+                exhausted = executePages(pipeline, purgeWorkers, retainedNodes, toDate, partition);
+            }
+            finally
+            {
+                this.prefetcher = null;
+                pipeline.shutdown();
+                purgeWorkers.shutdown();
+                try
                 {
-                    //fToSkip.increment();
-                    if( this.getStatus() == Status.STOPPING || this.getStatus() == Status.DISABLED )
-                        break;
-                    if (!nodeService.exists(nodeRef))
-                    {
-                        //System.out.println(" ***** Node not exist: " + nodeRef);
-                        continue;
-                    }
-                    Date archivedDate = (Date) nodeService
-                            .getProperty(nodeRef, ContentModel.PROP_ARCHIVED_DATE);
-                    //here we are testing the case if some node are in archive but not having ContentModel.PROP_ARCHIVED_DATE
-                    //I also probably mean that the aspect ASPECT_ARCHIVED is not there neither.
-                    //Therefore we display a warning when aspect ASPECT_ARCHIVED is not present or PROP_ARCHIVED_DATE
-                    //is null. Given that there elements are skipped we do the tests in deleteRecursive(...)
-                    //* @return  the value <code>0</code> if the argument Date is equal to
-                    //        *          this Date; a value less than <code>0</code> if this Date
-                    //        *          is before the Date argument; and a value greater than
-                    //        *      <code>0</code> if this Date is after the Date argument.
-                    System.out.println("*********** NodeRef:" + nodeRef + " Archived Date: " + archivedDate );
-                    if (archivedDate == null || archivedDate.after(toDate))
+                    if (exhausted)
                     {
-                        fToSkip.increment();
-                        //doMore = false;
-                        //break;
-                        //System.out.println("Do nothing! " + archivedDate);
-                        continue;
+                        runCheckpoint.clear();
                     }
-                    String name = (String) nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
-                    if (logger.isDebugEnabled())
-                    {
-                        logger.debug("Delete NodeRef :" + nodeRef + " $ Name :" + name + " $ archivedDate :"
-                                + archivedDate);
-                    }
-                    // Maybe there is more than one element to deleted there
-                    // It might be a big tree and therefore causing/requiring big or even too big transaction
-                    MutableBoolean fSkipBool = new MutableBoolean(false);
-                    while (this.getStatus() != Status.STOPPING && this.getStatus() != Status.DISABLED && deleteRecursive(nodeRef, 500, fSkipBool) != 0)
-                    {
-                        //fToSkip.increment();
-                        //System.out.println("Skip: " + fToSkip.value);
-                    }
-                    // it true we have a tree that was pruned but containing
-                    // a node of type that must be preserved
-                    if (fSkipBool.value == true)
+                    else
                     {
-                        fToSkip.increment();
+                        runCheckpoint.save(pipeline.getPageCursor(), deletedNodes.get() - deletedBefore,
+                                retainedRoots.get() - retainedBefore);
                     }
-                    //System.out.println("After Skip: " + fToSkip.value);
                 }
-                //System.out.println("Page finished!!!");
-                //doMore = true;
-                
+                catch (RuntimeException e)
+                {
+                    // the failure of the run, if any, is the one to propagate, the next run resumes from the previous
+                    // checkpoint
+                    logger.error("Checkpoint of partition " + partition + " could not be updated", e);
+                }
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Partition " + partition + " done, nodes deleted: " + deletedNodes.get()
+                            + ", archived roots left in the bin: " + retainedRoots.get()
+                            + ", roots purged in one transaction: " + fastPurgedRoots.get()
+                            + ", roots purged node by node: " + nodePurgedRoots.get() + ", nodes quarantined: "
+                            + quarantinedNodes.get());
+                }
             }
-            while (doMore == true);
-            
+        }
+    }
 
+    /**
+     * Purge the candidates page after page until the pipeline is exhausted or the cleaner stopped
+     * 
+     * @param pipeline
+     * @param purgeWorkers purge the roots of a page concurrently
+     * @param retainedNodes records the roots left in the bin
+     * @param toDate nodes archived after this date are protected
+     * @param partition only roots of this partition are purged
+     * @return true if every candidate has been read, false if the cleaner has been stopped before
+     */
+    private boolean executePages(CandidatePrefetcher pipeline, PurgeWorkers purgeWorkers,
+            final RetainedNodeRegistry retainedNodes, final Date toDate, int partition)
+    {
+        int iteration = 1;
+        do
+        {
+            if (mustStop())
+                return false;
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("iteration =" + iteration);
+            }
+            iteration++;
+            List<ArchivedNodeInfo> pageElements = pipeline.next();
+            if( pageElements.size() == 0 )
+               // also returned when the pipeline has been shut down by a stop
+               return !mustStop();
+            List<NodeRef> roots = selectRoots(pageElements, retainedNodes, toDate, partition);
+            // small subtrees without protected node share transactions, the others get their own
+            for (List<SubtreePurgePlan> group : coalesce(planRoots(purgeWorkers, roots), batchSizer.getBatchSize()))
+            {
+                final List<SubtreePurgePlan> fGroup = group;
+                purgeWorkers.submit(new Runnable()
+                    {
+                        public void run()
+                        {
+                            if (fGroup.size() == 1)
+                            {
+                                purgePlanned(fGroup.get(0), retainedNodes);
+                            }
+                            else
+                            {
+                                purgeGroup(fGroup, retainedNodes);
+                            }
+                        }
+                    });
+            }
+            // the roots kept are flushed once the whole page is done
+            purgeWorkers.awaitAll();
+            retainedNodes.flush();
         }
+        while (true);
     }
-    
-    private List<NodeRef> executeQuery(
-            StoreRef storeRef,
-            SearchService searchService,
-            String query,
-            int startingElement,
-            int pageLen)
-    {
-
-        SearchParameters sp = new SearchParameters();
-        sp.addStore(storeRef);
-        sp.setLanguage(SearchService.LANGUAGE_FTS_ALFRESCO);
-        sp.setQueryConsistency(QueryConsistency.TRANSACTIONAL);
-        sp.setSkipCount(startingElement);
-        System.out.println("///////////////////////////////////////////////////////////////////**************** ContentModel.PROP_ARCHIVED_DATE.toPrefixString() " + ContentModel.PROP_ARCHIVED_DATE.toPrefixString());
-        sp.addSort(ContentModel.PROP_ARCHIVED_DATE.toString(), true);
-        // -1 unlimited result size
-        sp.setMaxItems(-1);
-        sp.setQuery(query);
-        ResultSet results = searchService.query(sp);
-        List<NodeRef> nodeToClean = new ArrayList<NodeRef>(pageLen);
-        int i;
-        for (i = startingElement; i < startingElement + pageLen; i++)
-        {
-            if (i - startingElement >= results.length())
+
+    /**
+     * Select the archived roots of a page to purge. Nodes archived below a root are left to the purge of
+     * their root, their subtrees would overlap and be deleted twice by concurrent workers.
+     * 
+     * @param pageElements snapshots of the page
+     * @param retainedNodes records the roots left in the bin
+     * @param toDate nodes archived after this date are protected
+     * @param partition only roots of this partition are purged
+     * @return the roots to purge, in the order of the page
+     */
+    List<NodeRef> selectRoots(List<ArchivedNodeInfo> pageElements, RetainedNodeRegistry retainedNodes, Date toDate,
+            int partition)
+    {
+        List<NodeRef> roots = new ArrayList<NodeRef>(pageElements.size());
+        for (ArchivedNodeInfo root : pageElements)
+        {
+            if (mustStop())
                 break;
-            NodeRef nodeRef = results.getNodeRef(i - startingElement);
-            nodeToClean.add(nodeRef);
+            if (root.exists() && !root.isArchivedRoot())
+            {
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Node " + root.getNodeRef() + " skipped, purged with its archived root");
+                }
+                continue;
+            }
+            // roots of the other partitions are purged by the members holding their lock
+            if (isInPartition(root, partition) && isPurgeable(root, retainedNodes, toDate))
+            {
+                roots.add(root.getNodeRef());
+            }
         }
-        results.close();
-        return nodeToClean;
+        return roots;
     }
 
-}
-
-class MutableInteger
-{
-    int value;
-
-    public MutableInteger(int n)
+    /**
+     * Plan the subtrees of the roots of a page, the roots are split among the workers and each worker plans
+     * its share in one read-only transaction
+     * 
+     * @param purgeWorkers
+     * @param roots archived roots to purge
+     * @return the plans, without the ones of the slices interrupted by a stop
+     */
+    private List<SubtreePurgePlan> planRoots(PurgeWorkers purgeWorkers, List<NodeRef> roots)
     {
-        value = n;
+        final List<SubtreePurgePlan> plans = Collections.synchronizedList(new ArrayList<SubtreePurgePlan>(
+                roots.size()));
+        int sliceSize = Math.max(1, (roots.size() + workers - 1) / workers);
+        for (int from = 0; from < roots.size(); from += sliceSize)
+        {
+            final List<NodeRef> fSlice = roots.subList(from, Math.min(roots.size(), from + sliceSize));
+            purgeWorkers.submit(new Runnable()
+                {
+                    public void run()
+                    {
+                        List<SubtreePurgePlan> slicePlans = planSubtrees(fSlice);
+                        if (slicePlans != null)
+                        {
+                            plans.addAll(slicePlans);
+                        }
+                    }
+                });
+        }
+        purgeWorkers.awaitAll();
+        return plans;
     }
 
-    public void increment()
+    /**
+     * Group the plans in the transactions deleting them. Subtrees without protected node and with at most
+     * coalesceMaxNodes nodes are put together up to maxNodesPerGroup nodes, the other plans are alone.
+     * 
+     * @param plans
+     * @param maxNodesPerGroup node budget of a transaction
+     * @return groups of plans, a plan alone is purged on its own
+     */
+    List<List<SubtreePurgePlan>> coalesce(List<SubtreePurgePlan> plans, int maxNodesPerGroup)
     {
-        ++value;
+        List<List<SubtreePurgePlan>> groups = new ArrayList<List<SubtreePurgePlan>>();
+        List<SubtreePurgePlan> group = new ArrayList<SubtreePurgePlan>();
+        int groupNodes = 0;
+        for (SubtreePurgePlan plan : plans)
+        {
+            if (plan.isProtectedNodeFound() || plan.size() == 0 || plan.size() > coalesceMaxNodes)
+            {
+                groups.add(Collections.singletonList(plan));
+                continue;
+            }
+            if (!group.isEmpty() && groupNodes + plan.size() > maxNodesPerGroup)
+            {
+                groups.add(group);
+                group = new ArrayList<SubtreePurgePlan>();
+                groupNodes = 0;
+            }
+            group.add(plan);
+            groupNodes += plan.size();
+        }
+        if (!group.isEmpty())
+        {
+            groups.add(group);
+        }
+        return groups;
     }
 
-}
-
-class MutableBoolean
-{
-    boolean value;
-
-    public MutableBoolean(boolean v)
+    /**
+     * Purge small subtrees without protected node in one transaction by deleting their roots, the transaction is
+     * given to the batch sizer. If it fails the subtrees are purged one by one.
+     * 
+     * @param group plans of the subtrees
+     * @param retainedNodes records the roots left in the bin
+     */
+    private void purgeGroup(List<SubtreePurgePlan> group, RetainedNodeRegistry retainedNodes)
     {
-        value = v;
+        if (mustStop())
+            return;
+        final List<SubtreePurgePlan> fGroup = group;
+        final AtomicInteger attempts = new AtomicInteger();
+        int size = 0;
+        for (SubtreePurgePlan plan : group)
+        {
+            size += plan.size();
+        }
+        if (!throttle(size))
+            return;
+        final RetryingTransactionCallback<Integer> purgeWork = new RetryingTransactionCallback<Integer>()
+            {
+                public Integer execute() throws Exception
+                {
+                    attempts.incrementAndGet();
+                    int deleted = 0;
+                    boolean suppressed = disableBehaviours();
+                    try
+                    {
+                        for (SubtreePurgePlan plan : fGroup)
+                        {
+                            // restored or purged since the page was planned
+                            if (!nodeService.exists(plan.getRoot()))
+                                continue;
+                            nodeService.deleteNode(plan.getRoot());
+                            deleted += plan.size();
+                        }
+                    }
+                    finally
+                    {
+                        if (suppressed)
+                            restoreBehaviours();
+                    }
+                    return deleted;
+                }
+            };
+        AdaptiveBatchSizer sizer = batchSizer;
+        long start = System.currentTimeMillis();
+        try
+        {
+            int deleted = transactionService.getRetryingTransactionHelper().doInTransaction(purgeWork, false, true);
+            sizer.record(size, System.currentTimeMillis() - start, Math.max(0, attempts.get() - 1), false);
+            for (SubtreePurgePlan plan : group)
+            {
+                plan.advance(plan.size());
+            }
+            deletedNodes.addAndGet(deleted);
+            fastPurgedRoots.addAndGet(group.size());
+            if (logger.isDebugEnabled())
+            {
+                logger.debug(group.size() + " roots purged in one transaction (" + deleted + " nodes)");
+            }
+        }
+        catch (RuntimeException e)
+        {
+            if (RetryingTransactionHelper.extractRetryCause(e) != null)
+            {
+                sizer.record(size, System.currentTimeMillis() - start, Math.max(0, attempts.get() - 1), true);
+                throw e;
+            }
+            // nothing deleted, the nodes are charged again when each root is purged on its own
+            rateLimiter.release(size);
+            // each root on its own, failing nodes are then isolated
+            logger.warn("Purge of " + group.size() + " roots in one transaction failed, purging them one by one: "
+                    + e);
+            for (SubtreePurgePlan plan : group)
+            {
+                purgePlanned(plan, retainedNodes);
+            }
+        }
     }
 
-    public void set(boolean v)
+    /**
+     * Check on the page snapshot that an archived root is to be purged now, the roots to keep are recorded
+     * 
+     * @param root snapshot of the archived root
+     * @param retainedNodes records the roots left in the bin
+     * @param toDate nodes archived after this date are protected
+     * @return true if the subtree of the root must be planned and purged
+     */
+    private boolean isPurgeable(ArchivedNodeInfo root, RetainedNodeRegistry retainedNodes, Date toDate)
     {
-        value = v;
+        if (!root.exists())
+        {
+            return false;
+        }
+        NodeRef nodeRef = root.getNodeRef();
+        Date archivedDate = root.getArchivedDate();
+        //here we are testing the case if some node are in archive but not having ContentModel.PROP_ARCHIVED_DATE
+        //I also probably mean that the aspect ASPECT_ARCHIVED is not there neither.
+        //Therefore we display a warning when aspect ASPECT_ARCHIVED is not present or PROP_ARCHIVED_DATE
+        //is null. Given that there elements are skipped we do the tests in getRetainReason(...)
+        //The query is already bounded by toDate, this is only a cheap re-check.
+        if (archivedDate == null || archivedDate.after(toDate))
+        {
+            return false;
+        }
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Delete NodeRef :" + nodeRef + " $ Name :" + root.getName() + " $ archivedDate :"
+                    + archivedDate);
+        }
+        RetainedNodeRegistry.Reason reason = getRetainReason(root);
+        if (reason != null)
+        {
+            retainedNodes.retain(nodeRef, reason);
+            retainedRoots.incrementAndGet();
+            return false;
+        }
+        return true;
     }
 
-    public boolean get(boolean v)
+    /**
+     * Purge one planned archived root, can be called concurrently for distinct roots
+     * 
+     * @param plan plan of the subtree of the root
+     * @param retainedNodes records the roots left in the bin
+     */
+    private void purgePlanned(SubtreePurgePlan plan, RetainedNodeRegistry retainedNodes)
     {
-        return value;
+        if (mustStop())
+            return;
+        NodeRef nodeRef = plan.getRoot();
+        // nothing to keep and small enough for one transaction: delete it from its root
+        if (!plan.isProtectedNodeFound() && plan.size() > 0 && plan.size() <= fastPurgeMaxNodes)
+        {
+            if (!throttle(plan.size()))
+                return;
+            try
+            {
+                deletedNodes.addAndGet(fastPurge(plan));
+                fastPurgedRoots.incrementAndGet();
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Root purged in one transaction: " + nodeRef + " (" + plan.size() + " nodes)");
+                }
+                return;
+            }
+            catch (RuntimeException e)
+            {
+                if (RetryingTransactionHelper.extractRetryCause(e) != null)
+                    throw e;
+                // nothing deleted, the nodes are charged by the node by node transactions
+                rateLimiter.release(plan.size());
+                // node by node the failing nodes can be isolated
+                logger.warn("Purge in one transaction failed on " + nodeRef + ", purging node by node: " + e);
+            }
+        }
+        nodePurgedRoots.incrementAndGet();
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Root purged node by node: " + nodeRef + " (" + plan.size() + " nodes, protected node found: "
+                    + plan.isProtectedNodeFound() + ")");
+        }
+        if (treeWorkers > 1)
+        {
+            // the plan is left with the nodes above the branches
+            purgeBranches(plan);
+        }
+        while (!mustStop() && plan.hasNext())
+        {
+            deletedNodes.addAndGet(deleteNextBatch(plan));
+        }
+        // if true we have a tree that was pruned but containing
+        // a node of type that must be preserved
+        if (plan.isProtectedNodeFound())
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Node left in the bin: " + nodeRef);
+            }
+            retainedNodes.retain(nodeRef, RetainedNodeRegistry.Reason.PROTECTED_DESCENDANT);
+            retainedRoots.incrementAndGet();
+        }
+        else if (!plan.getQuarantined().isEmpty())
+        {
+            // the root itself when it failed, or it was kept by a failing descendant
+            for (NodeRef quarantined : plan.getQuarantined())
+            {
+                retainedNodes.retain(quarantined, RetainedNodeRegistry.Reason.QUARANTINED);
+            }
+            if (!plan.getQuarantined().contains(nodeRef))
+            {
+                retainedNodes.retain(nodeRef, RetainedNodeRegistry.Reason.QUARANTINED_DESCENDANT);
+            }
+            retainedRoots.incrementAndGet();
+        }
     }
 
+    /**
+     * Split a large plan in branches of complete subtrees and delete them concurrently, each branch in its own
+     * transactions. At most treeWorkers threads work on the branches of the root, the plan is left with the
+     * nodes above the branches, to be deleted once every branch is done.
+     * 
+     * @param plan plan of the subtree of the root, not started yet
+     */
+    private void purgeBranches(SubtreePurgePlan plan)
+    {
+        List<SubtreePurgePlan> branches = plan.splitBranches(treeSplitNodes);
+        if (branches.isEmpty())
+            return;
+        int threads = Math.min(treeWorkers, branches.size());
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Root " + plan.getRoot() + " split in " + branches.size() + " branches purged by "
+                    + threads + " threads, " + plan.size() + " nodes left above them");
+        }
+        final ConcurrentLinkedQueue<SubtreePurgePlan> fBranches = new ConcurrentLinkedQueue<SubtreePurgePlan>(
+                branches);
+        PurgeWorkers branchWorkers = new PurgeWorkers(threads);
+        try
+        {
+            for (int i = 0; i < threads; i++)
+            {
+                branchWorkers.submit(new Runnable()
+                    {
+                        public void run()
+                        {
+                            SubtreePurgePlan branch;
+                            while (!mustStop() && (branch = fBranches.poll()) != null)
+                            {
+                                while (!mustStop() && branch.hasNext())
+                                {
+                                    deletedNodes.addAndGet(deleteNextBatch(branch));
+                                }
+                            }
+                        }
+                    });
+            }
+            branchWorkers.awaitAll();
+        }
+        finally
+        {
+            branchWorkers.shutdown();
+            // the ancestors of a quarantined node fail in turn and are quarantined with the rest of the plan
+            for (SubtreePurgePlan branch : branches)
+            {
+                for (NodeRef quarantined : branch.getQuarantined())
+                {
+                    plan.addQuarantined(quarantined);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,61 @@
+package alternative.trashcancleaner.platformsample;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Unit testing how the number of nodes per purge transaction follows the commit time, and that only full
+ * batches make it grow
+ *
+ * @author Philippe
+ */
+public class AdaptiveBatchSizerTest
+{
+    private static final long TARGET_COMMIT_MS = 2000L;
+
+    @Test
+    public void testRecord()
+    {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(10, 1000, 100, TARGET_COMMIT_MS);
+        sizer.record(100, 10L, 0, false);
+        assertEquals(125, sizer.getBatchSize());
+        sizer.record(125, 3000L, 0, false);
+        assertEquals(94, sizer.getBatchSize());
+        sizer.record(94, 10L, 1, false);
+        assertEquals(47, sizer.getBatchSize());
+        sizer.record(47, 10L, 0, true);
+        assertEquals(23, sizer.getBatchSize());
+        // bounded
+        sizer.record(23, 10L, 0, true);
+        sizer.record(11, 10L, 0, true);
+        assertEquals(10, sizer.getBatchSize());
+    }
+
+    @Test
+    public void testShortBatchDoesNotGrow()
+    {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(10, 1000, 100, TARGET_COMMIT_MS);
+        sizer.record(3, 10L, 0, false);
+        assertEquals(100, sizer.getBatchSize());
+    }
+
+    @Test
+    public void testShortTailBatch()
+    {
+        PurgeTestFixture fixture = new PurgeTestFixture();
+        TrashcanCleaner trashcanCleaner = fixture.createCleaner(500);
+        trashcanCleaner.setMinBatchSize(1);
+        trashcanCleaner.setTargetCommitMs(TARGET_COMMIT_MS);
+
+        // the last 3 nodes of a subtree commit fast, a batch of 500 has not been tried
+        SubtreePurgePlan plan = PurgeTestFixture.createPlan(3);
+        assertEquals(3, trashcanCleaner.deleteNextBatch(plan));
+        assertEquals(500, trashcanCleaner.getBatchSize());
+
+        // a full batch does, the 3 nodes deleted already are skipped
+        plan = PurgeTestFixture.createPlan(1000);
+        assertEquals(497, trashcanCleaner.deleteNextBatch(plan));
+        assertEquals(625, trashcanCleaner.getBatchSize());
+    }
+}
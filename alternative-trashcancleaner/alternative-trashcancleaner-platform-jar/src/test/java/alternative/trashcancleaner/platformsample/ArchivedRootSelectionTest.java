@@ -0,0 +1,104 @@
+package alternative.trashcancleaner.platformsample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.Pair;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Unit testing the selection of the roots to purge in a page: the nodes archived below a root carry
+ * sys:archived and its archived date as well and may come in the same page, they are left to the purge of
+ * their root so concurrent workers never delete the same subtree
+ *
+ * @author Philippe
+ */
+public class ArchivedRootSelectionTest
+{
+    private static final StoreRef ARCHIVE_STORE_REF = new StoreRef("archive", "SpacesStore");
+    private static final long STORE_ROOT_ID = 1L;
+    private static final long FOLDER_ID = 10L;
+    private static final long DOCUMENT_ID = 11L;
+    private static final long OTHER_ROOT_ID = 20L;
+    private static final Date ARCHIVED_DATE = new Date(1000L);
+
+    private NodeDAO nodeDAO;
+    private TrashcanCleaner trashcanCleaner;
+    private RetainedNodeRegistry retainedNodes;
+
+    @Before
+    public void setUp()
+    {
+        nodeDAO = Mockito.mock(NodeDAO.class);
+        Mockito.when(nodeDAO.getRootNode(ARCHIVE_STORE_REF)).thenReturn(
+                new Pair<Long, NodeRef>(STORE_ROOT_ID, nodeRef(STORE_ROOT_ID)));
+        addArchivedNode(FOLDER_ID, STORE_ROOT_ID, ContentModel.TYPE_FOLDER);
+        // archived with the folder, same aspect and date
+        addArchivedNode(DOCUMENT_ID, FOLDER_ID, ContentModel.TYPE_CONTENT);
+        addArchivedNode(OTHER_ROOT_ID, STORE_ROOT_ID, ContentModel.TYPE_CONTENT);
+
+        trashcanCleaner = new TrashcanCleaner();
+        trashcanCleaner.setDictionaryService(Mockito.mock(DictionaryService.class));
+        retainedNodes = new RetainedNodeRegistry(null, null, null, false, 0L);
+        retainedNodes.open("");
+    }
+
+    private static NodeRef nodeRef(long nodeId)
+    {
+        return new NodeRef(ARCHIVE_STORE_REF, String.format("00000000-0000-0000-0000-%012d", nodeId));
+    }
+
+    private void addArchivedNode(long nodeId, long parentId, QName type)
+    {
+        NodeRef nodeRef = nodeRef(nodeId);
+        Map<QName, Serializable> properties = new HashMap<QName, Serializable>();
+        properties.put(ContentModel.PROP_ARCHIVED_DATE, ARCHIVED_DATE);
+        properties.put(ContentModel.PROP_NAME, "node" + nodeId);
+        Mockito.when(nodeDAO.getNodePair(nodeRef)).thenReturn(new Pair<Long, NodeRef>(nodeId, nodeRef));
+        Mockito.when(nodeDAO.getNodeType(nodeId)).thenReturn(type);
+        Mockito.when(nodeDAO.getNodeAspects(nodeId)).thenReturn(Collections.singleton(ContentModel.ASPECT_ARCHIVED));
+        Mockito.when(nodeDAO.getNodeProperties(nodeId)).thenReturn(properties);
+        Mockito.when(nodeDAO.getPrimaryParentAssoc(nodeId)).thenReturn(
+                new Pair<Long, ChildAssociationRef>(nodeId, new ChildAssociationRef(ContentModel.ASSOC_CONTAINS,
+                        nodeRef(parentId), ContentModel.PROP_NAME, nodeRef)));
+    }
+
+    @Test
+    public void testDescendantInPageOfRoot()
+    {
+        List<ArchivedNodeInfo> page = new ArchivedNodeInfoLoader(nodeDAO).load(Arrays.asList(nodeRef(FOLDER_ID),
+                nodeRef(DOCUMENT_ID), nodeRef(OTHER_ROOT_ID)));
+
+        List<NodeRef> roots = trashcanCleaner.selectRoots(page, retainedNodes, new Date(), 0);
+
+        // the document is deleted with the folder, only once
+        assertEquals(Arrays.asList(nodeRef(FOLDER_ID), nodeRef(OTHER_ROOT_ID)), roots);
+    }
+
+    @Test
+    public void testDescendantAlone()
+    {
+        List<ArchivedNodeInfo> page = new ArchivedNodeInfoLoader(nodeDAO).load(Arrays.asList(nodeRef(DOCUMENT_ID)));
+
+        // not kept in the bin either, its root is still to be purged
+        assertEquals(0, trashcanCleaner.selectRoots(page, retainedNodes, new Date(), 0).size());
+        assertFalse(retainedNodes.isRetained(nodeRef(DOCUMENT_ID)));
+    }
+}
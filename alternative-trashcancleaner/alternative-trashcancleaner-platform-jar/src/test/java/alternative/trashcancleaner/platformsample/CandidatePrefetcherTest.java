@@ -0,0 +1,213 @@
+package alternative.trashcancleaner.platformsample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Unit testing the end of the read ahead: a source read to the end gives an empty page, a source failing
+ * gives its failure once the pages read before it are consumed, so the run does not take it for the end of
+ * the bin. A stop does not wait for the page being read.
+ *
+ * @author Philippe
+ */
+public class CandidatePrefetcherTest
+{
+    private static final StoreRef ARCHIVE_STORE_REF = new StoreRef("archive", "SpacesStore");
+    private static final int PAGE_LEN = 10;
+
+    private TransactionService transactionService;
+    private ArchivedNodeInfoLoader loader;
+    private RetainedNodeRegistry retainedNodes;
+
+    @Before
+    public void setUp()
+    {
+        RetryingTransactionHelper txnHelper = Mockito.mock(RetryingTransactionHelper.class);
+        Mockito.when(
+                txnHelper.doInTransaction(Mockito.any(RetryingTransactionCallback.class), Mockito.anyBoolean(),
+                        Mockito.anyBoolean())).thenAnswer(new Answer<Object>()
+            {
+                public Object answer(InvocationOnMock invocation) throws Throwable
+                {
+                    return ((RetryingTransactionCallback<?>) invocation.getArguments()[0]).execute();
+                }
+            });
+        transactionService = Mockito.mock(TransactionService.class);
+        Mockito.when(transactionService.getRetryingTransactionHelper()).thenReturn(txnHelper);
+        // snapshots of nodes already gone, only the node references matter here
+        loader = new ArchivedNodeInfoLoader(Mockito.mock(NodeDAO.class));
+        retainedNodes = new RetainedNodeRegistry(null, transactionService, null, false, 0L);
+        retainedNodes.open("");
+    }
+
+    /**
+     * Source of a number of pages, failing after them if a failure is given
+     */
+    private static class PagedSource implements CandidateSource
+    {
+        private final int pages;
+        private final RuntimeException failure;
+        private int read = 0;
+
+        PagedSource(int pages, RuntimeException failure)
+        {
+            this.pages = pages;
+            this.failure = failure;
+        }
+
+        public void setCutoff(Date cutoff)
+        {
+        }
+
+        public void setExclusions(Set<QName> excludedTypes, Set<NodeRef> excludedNodes)
+        {
+        }
+
+        public void setPartition(int partitions, int partition)
+        {
+        }
+
+        public String getCursor()
+        {
+            return Integer.toString(read);
+        }
+
+        public void setCursor(String cursor)
+        {
+            read = (cursor == null) ? 0 : Integer.parseInt(cursor);
+        }
+
+        public List<NodeRef> nextPage(int pageLen)
+        {
+            if (read == pages)
+            {
+                if (failure != null)
+                    throw failure;
+                return Collections.emptyList();
+            }
+            List<NodeRef> page = new ArrayList<NodeRef>(pageLen);
+            for (int i = 0; i < pageLen; i++)
+            {
+                page.add(new NodeRef(ARCHIVE_STORE_REF, "node" + read + "-" + i));
+            }
+            read++;
+            return page;
+        }
+    }
+
+    private void checkPages(CandidatePrefetcher prefetcher, int pages)
+    {
+        for (int page = 0; page < pages; page++)
+        {
+            assertEquals(PAGE_LEN, prefetcher.next().size());
+            assertEquals(Integer.toString(page), prefetcher.getPageCursor());
+        }
+    }
+
+    @Test
+    public void testEndOfSource()
+    {
+        for (int depth = 0; depth <= 1; depth++)
+        {
+            CandidatePrefetcher prefetcher = new CandidatePrefetcher(new PagedSource(3, null), loader, retainedNodes,
+                    transactionService, PAGE_LEN, depth);
+            prefetcher.start();
+
+            checkPages(prefetcher, 3);
+            assertTrue(prefetcher.next().isEmpty());
+            prefetcher.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailureOfSource()
+    {
+        for (int depth = 0; depth <= 1; depth++)
+        {
+            RuntimeException failure = new IllegalStateException("database gone");
+            CandidatePrefetcher prefetcher = new CandidatePrefetcher(new PagedSource(3, failure), loader,
+                    retainedNodes, transactionService, PAGE_LEN, depth);
+            prefetcher.start();
+
+            checkPages(prefetcher, 3);
+            try
+            {
+                prefetcher.next();
+                fail("The failure of the source must not end the pages");
+            }
+            catch (IllegalStateException e)
+            {
+                assertSame(failure, e);
+            }
+            // the run is saved from the last page returned
+            assertEquals("2", prefetcher.getPageCursor());
+            prefetcher.shutdown();
+        }
+    }
+
+    @Test
+    public void testStopDuringRead() throws Exception
+    {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch read = new CountDownLatch(1);
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        PagedSource source = new PagedSource(3, null)
+            {
+                @Override
+                public List<NodeRef> nextPage(int pageLen)
+                {
+                    reading.countDown();
+                    try
+                    {
+                        release.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        interrupted.set(true);
+                    }
+                    read.countDown();
+                    return super.nextPage(pageLen);
+                }
+            };
+        CandidatePrefetcher prefetcher = new CandidatePrefetcher(source, loader, retainedNodes, transactionService,
+                PAGE_LEN, 1);
+        prefetcher.start();
+        assertTrue(reading.await(10L, TimeUnit.SECONDS));
+
+        // a status change while the producer is in the middle of a read returns at once
+        prefetcher.stop();
+        assertTrue(prefetcher.next().isEmpty());
+
+        // the read is finished without being interrupted, then the run waits for the producer
+        release.countDown();
+        assertTrue(read.await(10L, TimeUnit.SECONDS));
+        assertFalse(interrupted.get());
+        prefetcher.shutdown();
+    }
+}
@@ -0,0 +1,162 @@
+package alternative.trashcancleaner.platformsample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.Pair;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Unit testing the walk of the children of the archive store root: pages are sorted by node id and start
+ * after the last id read, so the nodes purged meanwhile do not move the position, and only the archived
+ * roots archived before the cutoff and not excluded are returned
+ *
+ * @author Philippe
+ */
+public class ChildAssocCandidateSourceTest
+{
+    private static final StoreRef ARCHIVE_STORE_REF = new StoreRef("archive", "SpacesStore");
+    private static final long STORE_ROOT_ID = 1L;
+    private static final int PAGE_LEN = 2;
+    private static final Date CUTOFF = new Date(10000L);
+    private static final QName ARCHIVE_USER = QName.createQName("{http://www.alfresco.org/model/system/1.0}admin");
+
+    private NodeDAO nodeDAO;
+    // children of the archive store root still in the bin
+    private SortedSet<Long> children;
+    private ChildAssocCandidateSource source;
+
+    @Before
+    public void setUp()
+    {
+        nodeDAO = Mockito.mock(NodeDAO.class);
+        children = new TreeSet<Long>();
+        Mockito.when(nodeDAO.getRootNode(ARCHIVE_STORE_REF)).thenReturn(
+                new Pair<Long, NodeRef>(STORE_ROOT_ID, nodeRef(STORE_ROOT_ID)));
+        ChildNodesDAO childNodesDAO = Mockito.mock(ChildNodesDAO.class);
+        Mockito.when(
+                childNodesDAO.getPrimaryChildNodeIds(Mockito.eq(STORE_ROOT_ID), Mockito.<Long> any(),
+                        Mockito.anyInt(), Mockito.anyInt(), Mockito.anyInt())).thenAnswer(new Answer<List<Long>>()
+            {
+                public List<Long> answer(InvocationOnMock invocation) throws Throwable
+                {
+                    Long lastId = (Long) invocation.getArguments()[1];
+                    int partitions = (Integer) invocation.getArguments()[2];
+                    int partition = (Integer) invocation.getArguments()[3];
+                    int pageSize = (Integer) invocation.getArguments()[4];
+                    SortedSet<Long> after = (lastId == null) ? children : children.tailSet(lastId + 1);
+                    List<Long> page = new ArrayList<Long>();
+                    for (Long childId : after)
+                    {
+                        if (partitions <= 1 || childId % partitions == partition)
+                        {
+                            page.add(childId);
+                        }
+                    }
+                    return page.subList(0, Math.min(pageSize, page.size()));
+                }
+            });
+
+        addChild(10L, ChildAssocCandidateSource.ARCHIVED_ITEM, ContentModel.TYPE_CONTENT, new Date(1000L));
+        // archive user of the person who deleted the nodes
+        addChild(11L, ARCHIVE_USER, ContentModel.TYPE_ARCHIVE_USER, null);
+        addChild(12L, ChildAssocCandidateSource.ARCHIVED_ITEM, ContentModel.TYPE_FOLDER, new Date(2000L));
+        // archived after the cutoff
+        addChild(13L, ChildAssocCandidateSource.ARCHIVED_ITEM, ContentModel.TYPE_CONTENT, new Date(20000L));
+        // excluded type
+        addChild(14L, ChildAssocCandidateSource.ARCHIVED_ITEM, ContentModel.TYPE_CMOBJECT, new Date(3000L));
+        // excluded node
+        addChild(15L, ChildAssocCandidateSource.ARCHIVED_ITEM, ContentModel.TYPE_CONTENT, new Date(4000L));
+        addChild(16L, ChildAssocCandidateSource.ARCHIVED_ITEM, ContentModel.TYPE_CONTENT, new Date(5000L));
+        addChild(17L, ChildAssocCandidateSource.ARCHIVED_ITEM, ContentModel.TYPE_CONTENT, new Date(6000L));
+
+        source = new ChildAssocCandidateSource(nodeDAO, childNodesDAO);
+        source.setCutoff(CUTOFF);
+        source.setExclusions(Collections.singleton(ContentModel.TYPE_CMOBJECT),
+                new HashSet<NodeRef>(Arrays.asList(nodeRef(15L))));
+    }
+
+    private static NodeRef nodeRef(long nodeId)
+    {
+        return new NodeRef(ARCHIVE_STORE_REF, String.format("00000000-0000-0000-0000-%012d", nodeId));
+    }
+
+    private void addChild(long nodeId, QName assocName, QName type, Date archivedDate)
+    {
+        NodeRef nodeRef = nodeRef(nodeId);
+        children.add(nodeId);
+        Mockito.when(nodeDAO.getNodePair(nodeId)).thenReturn(new Pair<Long, NodeRef>(nodeId, nodeRef));
+        Mockito.when(nodeDAO.getNodeType(nodeId)).thenReturn(type);
+        Mockito.when(nodeDAO.getNodeProperty(nodeId, ContentModel.PROP_ARCHIVED_DATE)).thenReturn(
+                (Serializable) archivedDate);
+        Mockito.when(nodeDAO.getPrimaryParentAssoc(nodeId)).thenReturn(
+                new Pair<Long, ChildAssociationRef>(nodeId, new ChildAssociationRef(ContentModel.ASSOC_CHILDREN,
+                        nodeRef(STORE_ROOT_ID), assocName, nodeRef)));
+    }
+
+    @Test
+    public void testPagesNotMovedByPurge()
+    {
+        assertEquals(Arrays.asList(nodeRef(10L)), source.nextPage(PAGE_LEN));
+        // purged before the next page is read
+        children.remove(10L);
+        assertEquals(Arrays.asList(nodeRef(12L)), source.nextPage(PAGE_LEN));
+        children.remove(12L);
+        // 13, 14 and 15 are left out, a page emptied by the filter does not end the walk
+        assertEquals(Arrays.asList(nodeRef(16L), nodeRef(17L)), source.nextPage(PAGE_LEN));
+        assertTrue(source.nextPage(PAGE_LEN).isEmpty());
+    }
+
+    @Test
+    public void testPartition()
+    {
+        source.setPartition(2, 0);
+        // 11 and 13 belong to the other partition, 14 is excluded
+        assertEquals(Arrays.asList(nodeRef(10L), nodeRef(12L)), source.nextPage(PAGE_LEN));
+        assertEquals(Arrays.asList(nodeRef(16L)), source.nextPage(PAGE_LEN));
+        assertTrue(source.nextPage(PAGE_LEN).isEmpty());
+
+        source.setCursor(null);
+        source.setPartition(2, 1);
+        assertEquals(Arrays.asList(nodeRef(17L)), source.nextPage(PAGE_LEN));
+        assertTrue(source.nextPage(PAGE_LEN).isEmpty());
+    }
+
+    @Test
+    public void testResume()
+    {
+        source.nextPage(PAGE_LEN);
+        String cursor = source.getCursor();
+        assertEquals("11", cursor);
+
+        ChildAssocCandidateSource resumed = new ChildAssocCandidateSource(nodeDAO, Mockito.mock(ChildNodesDAO.class));
+        resumed.setCursor(cursor);
+        assertEquals(cursor, resumed.getCursor());
+        resumed.setCursor(null);
+        assertNull(resumed.getCursor());
+
+        source.setCursor(cursor);
+        assertEquals(Arrays.asList(nodeRef(12L)), source.nextPage(PAGE_LEN));
+    }
+}
@@ -0,0 +1,97 @@
+package alternative.trashcancleaner.platformsample;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit testing the grouping of the archived roots of a page in shared transactions: small clean subtrees are
+ * purged together up to the batch size, the others are purged on their own
+ *
+ * @author Philippe
+ */
+public class CoalesceRootsTest
+{
+    private static final StoreRef ARCHIVE_STORE_REF = new StoreRef("archive", "SpacesStore");
+    private static final int BATCH_SIZE = 100;
+
+    private TrashcanCleaner trashcanCleaner;
+    private long nextNodeId;
+
+    @Before
+    public void setUp()
+    {
+        nextNodeId = 1L;
+        trashcanCleaner = new TrashcanCleaner();
+        trashcanCleaner.setCoalesceMaxNodes(20);
+    }
+
+    private SubtreePurgePlan plan(int size, boolean protectedNodeFound)
+    {
+        SubtreePurgePlan plan = new SubtreePurgePlan(new NodeRef(ARCHIVE_STORE_REF, "root" + nextNodeId));
+        for (int i = 0; i < size; i++)
+        {
+            plan.add(nextNodeId++);
+        }
+        if (protectedNodeFound)
+        {
+            plan.setProtectedNodeFound();
+        }
+        return plan;
+    }
+
+    @Test
+    public void testSmallRootsShareTransactions()
+    {
+        List<SubtreePurgePlan> plans = new ArrayList<SubtreePurgePlan>();
+        for (int i = 0; i < 25; i++)
+        {
+            plans.add(plan(10, false));
+        }
+
+        List<List<SubtreePurgePlan>> groups = trashcanCleaner.coalesce(plans, BATCH_SIZE);
+
+        // 250 nodes by transactions of at most 100 nodes
+        assertEquals(3, groups.size());
+        assertEquals(10, groups.get(0).size());
+        assertEquals(10, groups.get(1).size());
+        assertEquals(5, groups.get(2).size());
+    }
+
+    @Test
+    public void testOtherRootsAlone()
+    {
+        List<SubtreePurgePlan> plans = new ArrayList<SubtreePurgePlan>();
+        plans.add(plan(5, false));
+        plans.add(plan(5, true));
+        plans.add(plan(500, false));
+        plans.add(plan(5, false));
+
+        List<List<SubtreePurgePlan>> groups = trashcanCleaner.coalesce(plans, BATCH_SIZE);
+
+        // the protected and the large subtree alone, the two small ones together
+        assertEquals(3, groups.size());
+        assertEquals(1, groups.get(0).size());
+        assertEquals(1, groups.get(1).size());
+        assertEquals(2, groups.get(2).size());
+    }
+
+    @Test
+    public void testDisabled()
+    {
+        trashcanCleaner.setCoalesceMaxNodes(0);
+        List<SubtreePurgePlan> plans = new ArrayList<SubtreePurgePlan>();
+        for (int i = 0; i < 4; i++)
+        {
+            plans.add(plan(1, false));
+        }
+
+        assertEquals(4, trashcanCleaner.coalesce(plans, BATCH_SIZE).size());
+    }
+}
@@ -0,0 +1,129 @@
+package alternative.trashcancleaner.platformsample;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+/**
+ * Unit testing the time budget of a run and its expiry task on the scheduler of its cleaner
+ *
+ * @author Philippe
+ */
+public class DeadlineTest
+{
+    private static final long BUDGET_MS = 100L;
+    // only reached when the expiry task is never run
+    private static final long TIMEOUT_MS = 10000L;
+
+    private ScheduledThreadPoolExecutor scheduler;
+
+    @Before
+    public void setUp()
+    {
+        scheduler = new ScheduledThreadPoolExecutor(1);
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    @After
+    public void tearDown()
+    {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void testExpiry() throws Exception
+    {
+        final Deadline deadline = new Deadline(BUDGET_MS, scheduler);
+        assertFalse(deadline.isExpired());
+
+        final CountDownLatch expired = new CountDownLatch(1);
+        deadline.onExpiry(new Runnable()
+            {
+                public void run()
+                {
+                    // never run before the expiry
+                    if (deadline.isExpired())
+                    {
+                        expired.countDown();
+                    }
+                }
+            });
+
+        assertTrue(expired.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(deadline.isExpired());
+    }
+
+    @Test
+    public void testCancelled()
+    {
+        ScheduledExecutorService mockScheduler = Mockito.mock(ScheduledExecutorService.class);
+        ScheduledFuture<?> expiryTask = Mockito.mock(ScheduledFuture.class);
+        Mockito.doReturn(expiryTask).when(mockScheduler)
+                .schedule(Mockito.any(Runnable.class), Mockito.anyLong(), Mockito.any(TimeUnit.class));
+        Deadline deadline = new Deadline(BUDGET_MS, mockScheduler);
+        deadline.onExpiry(Mockito.mock(Runnable.class));
+
+        ArgumentCaptor<Long> delay = ArgumentCaptor.forClass(Long.class);
+        ArgumentCaptor<TimeUnit> unit = ArgumentCaptor.forClass(TimeUnit.class);
+        Mockito.verify(mockScheduler).schedule(Mockito.any(Runnable.class), delay.capture(), unit.capture());
+        assertTrue(unit.getValue().toMillis(delay.getValue()) <= BUDGET_MS);
+
+        // the run ended first
+        deadline.cancel();
+        Mockito.verify(expiryTask).cancel(false);
+    }
+
+    @Test
+    public void testSchedulerOfAnotherCleaner() throws Exception
+    {
+        Deadline destroyed = new Deadline(BUDGET_MS, scheduler);
+        Runnable notRun = Mockito.mock(Runnable.class);
+        destroyed.onExpiry(notRun);
+        // the other cleaner is destroyed
+        scheduler.shutdownNow();
+
+        ScheduledThreadPoolExecutor otherScheduler = new ScheduledThreadPoolExecutor(1);
+        try
+        {
+            final CountDownLatch expired = new CountDownLatch(1);
+            new Deadline(BUDGET_MS, otherScheduler).onExpiry(new Runnable()
+                {
+                    public void run()
+                    {
+                        expired.countDown();
+                    }
+                });
+            // deadlines of this cleaner still expire
+            assertTrue(expired.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            assertTrue(scheduler.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            Mockito.verifyZeroInteractions(notRun);
+        }
+        finally
+        {
+            otherScheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testNoLimit()
+    {
+        assertFalse(Deadline.NONE.isExpired());
+        assertFalse(Deadline.NONE.isLimited());
+        Deadline deadline = new Deadline(0L, null);
+        assertFalse(deadline.isLimited());
+        // nothing to schedule
+        deadline.onExpiry(Mockito.mock(Runnable.class));
+        deadline.cancel();
+    }
+}
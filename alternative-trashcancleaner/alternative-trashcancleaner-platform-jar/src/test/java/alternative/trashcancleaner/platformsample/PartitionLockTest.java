@@ -0,0 +1,121 @@
+package alternative.trashcancleaner.platformsample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.JobLockService.JobLockRefreshCallback;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.service.namespace.QName;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Unit testing the claim of the partitions of the bin: each free partition is locked once per run, partitions
+ * locked by other cluster members are passed
+ *
+ * @author Philippe
+ */
+public class PartitionLockTest
+{
+    private static final int PARTITIONS = 4;
+
+    private JobLockService jobLockService;
+    private TrashcanCleaner trashcanCleaner;
+    // locks held by the other members
+    private Set<String> heldElsewhere;
+    private Set<String> claimed;
+    private Set<String> released;
+
+    @Before
+    public void setUp()
+    {
+        heldElsewhere = new HashSet<String>();
+        claimed = new HashSet<String>();
+        released = new HashSet<String>();
+        jobLockService = Mockito.mock(JobLockService.class);
+        Mockito.when(jobLockService.getLock(Mockito.any(QName.class), Mockito.anyLong())).thenAnswer(
+                new Answer<String>()
+                    {
+                        public String answer(InvocationOnMock invocation) throws Throwable
+                        {
+                            String lock = ((QName) invocation.getArguments()[0]).getLocalName();
+                            if (heldElsewhere.contains(lock))
+                            {
+                                throw new LockAcquisitionException();
+                            }
+                            claimed.add(lock);
+                            return lock;
+                        }
+                    });
+        Mockito.doAnswer(new Answer<Object>()
+            {
+                public Object answer(InvocationOnMock invocation) throws Throwable
+                {
+                    released.add((String) invocation.getArguments()[0]);
+                    return null;
+                }
+            }).when(jobLockService).releaseLock(Mockito.anyString(), Mockito.any(QName.class));
+
+        trashcanCleaner = new TrashcanCleaner();
+        trashcanCleaner.setJobLockService(jobLockService);
+        // nothing is purged, only the locks are exercised
+        trashcanCleaner.setProtectedDays(0);
+    }
+
+    @Test
+    public void testFreePartitionsClaimed()
+    {
+        trashcanCleaner.setPartitions(PARTITIONS);
+        heldElsewhere.add("org.alfresco.repo.TrashcanCleaner.partition1");
+        heldElsewhere.add("org.alfresco.repo.TrashcanCleaner.partition3");
+
+        trashcanCleaner.execute();
+
+        Set<String> expected = new HashSet<String>();
+        expected.add("org.alfresco.repo.TrashcanCleaner.partition0");
+        expected.add("org.alfresco.repo.TrashcanCleaner.partition2");
+        assertEquals(expected, claimed);
+        assertEquals(expected, released);
+        assertEquals(TrashcanCleaner.Status.STOPPED, trashcanCleaner.getStatus());
+    }
+
+    @Test
+    public void testSingleLock()
+    {
+        trashcanCleaner.execute();
+
+        Set<String> expected = new HashSet<String>();
+        expected.add("org.alfresco.repo.TrashcanCleaner");
+        assertEquals(expected, claimed);
+        assertEquals(expected, released);
+    }
+
+    @Test
+    public void testLockLost()
+    {
+        trashcanCleaner.setPartitions(PARTITIONS);
+        Mockito.doAnswer(new Answer<Object>()
+            {
+                public Object answer(InvocationOnMock invocation) throws Throwable
+                {
+                    // another member takes the partition over as soon as it is claimed
+                    ((JobLockRefreshCallback) invocation.getArguments()[3]).lockReleased();
+                    return null;
+                }
+            }).when(jobLockService).refreshLock(Mockito.anyString(), Mockito.any(QName.class), Mockito.anyLong(),
+                Mockito.any(JobLockRefreshCallback.class));
+
+        trashcanCleaner.execute();
+
+        // the run goes on with the other partitions
+        assertEquals(PARTITIONS, claimed.size());
+        assertFalse(trashcanCleaner.mustStop());
+    }
+}
@@ -0,0 +1,184 @@
+package alternative.trashcancleaner.platformsample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.attributes.AttributeService.AttributeQueryCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.dao.DataAccessResourceFailureException;
+
+/**
+ * Unit testing the isolation of the nodes whose deletion fails: the batch is split until they are found,
+ * they are quarantined and every other node of the plan is deleted, each node being charged once to the
+ * rate limit. A failing database quarantines nothing, and a quarantine expires
+ *
+ * @author Philippe
+ */
+public class PoisonNodeIsolationTest
+{
+    private static final int NUM_OF_NODES = 1000;
+    private static final int BATCH_SIZE = 500;
+
+    private PurgeTestFixture fixture;
+    private TrashcanCleaner trashcanCleaner;
+    private Set<NodeRef> poisonNodes;
+    private volatile boolean databaseDown;
+
+    @Before
+    public void setUp()
+    {
+        poisonNodes = new HashSet<NodeRef>(Arrays.asList(nodeRef(137L), nodeRef(731L)));
+        databaseDown = false;
+        fixture = new PurgeTestFixture()
+            {
+                @Override
+                protected void beforeDelete(NodeRef nodeRef)
+                {
+                    if (databaseDown)
+                    {
+                        throw new RuntimeException("Delete failed", new DataAccessResourceFailureException(
+                                "Connection refused"));
+                    }
+                    if (poisonNodes.contains(nodeRef))
+                    {
+                        throw new IllegalStateException("Integrity violation on " + nodeRef);
+                    }
+                }
+            };
+        trashcanCleaner = fixture.createCleaner(BATCH_SIZE);
+    }
+
+    private static NodeRef nodeRef(long nodeId)
+    {
+        return PurgeTestFixture.nodeRef(nodeId);
+    }
+
+    @Test
+    public void testPoisonNodesQuarantined()
+    {
+        SubtreePurgePlan plan = PurgeTestFixture.createPlan(NUM_OF_NODES);
+
+        int deleted = 0;
+        while (plan.hasNext())
+        {
+            deleted += trashcanCleaner.deleteNextBatch(plan);
+        }
+
+        assertFalse(plan.hasNext());
+        assertEquals(NUM_OF_NODES - poisonNodes.size(), deleted);
+        assertEquals(NUM_OF_NODES - poisonNodes.size(), fixture.deletedNodes.size());
+        assertEquals(poisonNodes, new HashSet<NodeRef>(plan.getQuarantined()));
+        assertEquals(poisonNodes.size(), trashcanCleaner.getQuarantinedNodesCount());
+        // a few transactions per poison node, not one per node
+        assertTrue("Transactions: " + fixture.numOfTransactions, fixture.numOfTransactions.get() < 60);
+    }
+
+    @Test
+    public void testPoisonNodesRateLimited()
+    {
+        SubtreePurgePlan plan = PurgeTestFixture.createPlan(NUM_OF_NODES);
+        // one second of nodes for the whole plan, the levels of the split charging the failed batches again
+        // throttle the purge for about 2 seconds
+        trashcanCleaner.setRate(NUM_OF_NODES, 0d, "");
+
+        long start = System.currentTimeMillis();
+        int deleted = 0;
+        while (plan.hasNext())
+        {
+            deleted += trashcanCleaner.deleteNextBatch(plan);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(NUM_OF_NODES - poisonNodes.size(), deleted);
+        assertEquals(poisonNodes, new HashSet<NodeRef>(plan.getQuarantined()));
+        assertTrue("Throttled for " + elapsed + " ms", elapsed < 1500L);
+    }
+
+    @Test
+    public void testDatabaseDown()
+    {
+        SubtreePurgePlan plan = PurgeTestFixture.createPlan(NUM_OF_NODES);
+        databaseDown = true;
+
+        try
+        {
+            trashcanCleaner.deleteNextBatch(plan);
+            fail("The failure of the database must end the run");
+        }
+        catch (RuntimeException e)
+        {
+            assertTrue(TrashcanCleaner.isInfrastructureFailure(e));
+        }
+
+        // nothing skipped, the next run tries every node again
+        assertTrue(plan.getQuarantined().isEmpty());
+        assertEquals(0, trashcanCleaner.getQuarantinedNodesCount());
+        assertEquals(NUM_OF_NODES, plan.peekBatch(NUM_OF_NODES).size());
+        assertEquals(1, fixture.numOfTransactions.get());
+    }
+
+    @Test
+    public void testQuarantineExpired()
+    {
+        final NodeRef expired = nodeRef(137L);
+        final NodeRef quarantined = nodeRef(731L);
+        final NodeRef protectedRoot = nodeRef(1L);
+        final long now = System.currentTimeMillis();
+        AttributeService attributeService = Mockito.mock(AttributeService.class);
+        Mockito.when(attributeService.getAttribute(RetainedNodeRegistry.ATTR_APP,
+                RetainedNodeRegistry.ATTR_FINGERPRINT)).thenReturn("f");
+        Mockito.doAnswer(new Answer<Object>()
+            {
+                public Object answer(InvocationOnMock invocation) throws Throwable
+                {
+                    AttributeQueryCallback callback = (AttributeQueryCallback) invocation.getArguments()[0];
+                    callback.handleAttribute(1L, "QUARANTINED|f|" + (now - 1000L), keys(expired));
+                    callback.handleAttribute(2L, "QUARANTINED|f|" + (now + 60000L), keys(quarantined));
+                    callback.handleAttribute(3L, "PROTECTED|f", keys(protectedRoot));
+                    return null;
+                }
+            }).when(attributeService).getAttributes(Mockito.any(AttributeQueryCallback.class),
+                Mockito.eq(RetainedNodeRegistry.ATTR_APP), Mockito.eq(RetainedNodeRegistry.ATTR_RETAINED));
+
+        RetainedNodeRegistry retainedNodes = new RetainedNodeRegistry(attributeService,
+                fixture.transactionService, null, true, 60000L);
+        retainedNodes.open("f");
+
+        assertFalse(retainedNodes.isRetained(expired));
+        assertTrue(retainedNodes.isRetained(quarantined));
+        assertTrue(retainedNodes.isRetained(protectedRoot));
+        Mockito.verify(attributeService).removeAttribute(RetainedNodeRegistry.ATTR_APP,
+                RetainedNodeRegistry.ATTR_RETAINED, expired.toString());
+    }
+
+    private static Serializable[] keys(NodeRef nodeRef)
+    {
+        return new Serializable[] { RetainedNodeRegistry.ATTR_APP, RetainedNodeRegistry.ATTR_RETAINED,
+                nodeRef.toString() };
+    }
+
+    @Test
+    public void testBatchSizeKept()
+    {
+        SubtreePurgePlan plan = PurgeTestFixture.createPlan(NUM_OF_NODES);
+        trashcanCleaner.setMaxBatchSize(BATCH_SIZE * 2);
+
+        trashcanCleaner.deleteNextBatch(plan);
+
+        // the poison node is not taken for a sign of load
+        assertTrue(trashcanCleaner.getBatchSize() >= BATCH_SIZE);
+    }
+}
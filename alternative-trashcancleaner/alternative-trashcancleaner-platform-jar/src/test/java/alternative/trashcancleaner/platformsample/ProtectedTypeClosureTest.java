@@ -0,0 +1,76 @@
+package alternative.trashcancleaner.platformsample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Unit testing the protected types closure used by the protection checks
+ *
+ * @author Philippe
+ */
+public class ProtectedTypeClosureTest
+{
+    private static final String URI = "{custom.model}";
+    private static final QName SITE = QName.createQName("{http://www.alfresco.org/model/site/1.0}site");
+    private static final QName MY_SITE = QName.createQName(URI + "mysite");
+    private static final QName MY_FOLDER = QName.createQName(URI + "myfolder");
+    private static final QName MY_SUB_FOLDER = QName.createQName(URI + "mysubfolder");
+    private static final QName MY_CONTENT = QName.createQName(URI + "mycontent");
+    private static final NodeRef NODE_REF = new NodeRef("archive://SpacesStore/00000000-0000-0000-0000-000000000000");
+
+    private DictionaryService dictionaryService;
+    private TrashcanCleaner trashcanCleaner;
+
+    @Before
+    public void setUp()
+    {
+        dictionaryService = Mockito.mock(DictionaryService.class);
+        Mockito.when(dictionaryService.getSubTypes(SITE, true)).thenReturn(Arrays.asList(SITE, MY_SITE));
+        Mockito.when(dictionaryService.getSubTypes(MY_FOLDER, true)).thenReturn(
+                Arrays.asList(MY_FOLDER, MY_SUB_FOLDER));
+        trashcanCleaner = new TrashcanCleaner();
+        trashcanCleaner.setDictionaryService(dictionaryService);
+        trashcanCleaner.setSetToProtect(new HashSet<String>(Arrays.asList(MY_FOLDER.toString())));
+    }
+
+    @Test
+    public void testClosure()
+    {
+        assertTrue(trashcanCleaner.mustBeProtected(NODE_REF, SITE));
+        assertTrue(trashcanCleaner.mustBeProtected(NODE_REF, MY_SITE));
+        assertTrue(trashcanCleaner.mustBeProtected(NODE_REF, MY_FOLDER));
+        assertTrue(trashcanCleaner.mustBeProtected(NODE_REF, MY_SUB_FOLDER));
+        assertFalse(trashcanCleaner.mustBeProtected(NODE_REF, MY_CONTENT));
+        // subtypes are read once, never compared node by node
+        Mockito.verify(dictionaryService, Mockito.times(1)).getSubTypes(SITE, true);
+        Mockito.verify(dictionaryService, Mockito.never()).isSubClass(Mockito.any(QName.class),
+                Mockito.any(QName.class));
+    }
+
+    @Test
+    public void testClosureRebuilt()
+    {
+        assertFalse(trashcanCleaner.mustBeProtected(NODE_REF, MY_CONTENT));
+
+        // a model adding a subtype of site is loaded
+        Mockito.when(dictionaryService.getSubTypes(SITE, true)).thenReturn(Arrays.asList(SITE, MY_SITE, MY_CONTENT));
+        trashcanCleaner.afterDictionaryInit();
+        assertTrue(trashcanCleaner.mustBeProtected(NODE_REF, MY_CONTENT));
+
+        // the types to protect are changed
+        trashcanCleaner.setSetToProtect(null);
+        assertFalse(trashcanCleaner.mustBeProtected(NODE_REF, MY_FOLDER));
+        assertEquals(3, trashcanCleaner.getProtectedTypeClosure().size());
+    }
+}
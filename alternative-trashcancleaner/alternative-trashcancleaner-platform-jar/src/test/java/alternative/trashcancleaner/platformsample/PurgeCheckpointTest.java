@@ -0,0 +1,154 @@
+package alternative.trashcancleaner.platformsample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.transaction.TransactionService;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Unit testing the checkpoint saved by a run stopped before the end of the bin and resumed by the next one
+ *
+ * @author Philippe
+ */
+public class PurgeCheckpointTest
+{
+    private static final String KEY = "search|1234abcd";
+
+    // attributes by keys
+    private Map<List<Serializable>, Serializable> attributes;
+    private AttributeService attributeService;
+    private TransactionService transactionService;
+
+    @Before
+    public void setUp()
+    {
+        attributes = new HashMap<List<Serializable>, Serializable>();
+        attributeService = Mockito.mock(AttributeService.class);
+        Mockito.doAnswer(new Answer<Object>()
+            {
+                public Object answer(InvocationOnMock invocation) throws Throwable
+                {
+                    Object[] args = invocation.getArguments();
+                    attributes.put(Arrays.asList((Serializable[]) Arrays.copyOfRange(args, 1, args.length,
+                            Serializable[].class)), (Serializable) args[0]);
+                    return null;
+                }
+            }).when(attributeService).setAttribute(Mockito.any(Serializable.class), Mockito.<Serializable> anyVararg());
+        Mockito.when(attributeService.getAttribute(Mockito.<Serializable> anyVararg())).thenAnswer(
+                new Answer<Serializable>()
+                    {
+                        public Serializable answer(InvocationOnMock invocation) throws Throwable
+                        {
+                            return attributes.get(Arrays.asList((Serializable[]) Arrays.copyOf(
+                                    invocation.getArguments(), invocation.getArguments().length, Serializable[].class)));
+                        }
+                    });
+        Mockito.doAnswer(new Answer<Object>()
+            {
+                public Object answer(InvocationOnMock invocation) throws Throwable
+                {
+                    attributes.remove(Arrays.asList((Serializable[]) Arrays.copyOf(invocation.getArguments(),
+                            invocation.getArguments().length, Serializable[].class)));
+                    return null;
+                }
+            }).when(attributeService).removeAttribute(Mockito.<Serializable> anyVararg());
+
+        RetryingTransactionHelper txnHelper = Mockito.mock(RetryingTransactionHelper.class);
+        Mockito.when(
+                txnHelper.doInTransaction(Mockito.any(RetryingTransactionCallback.class), Mockito.anyBoolean(),
+                        Mockito.anyBoolean())).thenAnswer(new Answer<Object>()
+            {
+                public Object answer(InvocationOnMock invocation) throws Throwable
+                {
+                    return ((RetryingTransactionCallback<?>) invocation.getArguments()[0]).execute();
+                }
+            });
+        transactionService = Mockito.mock(TransactionService.class);
+        Mockito.when(transactionService.getRetryingTransactionHelper()).thenReturn(txnHelper);
+    }
+
+    @Test
+    public void testResume()
+    {
+        PurgeCheckpoint first = new PurgeCheckpoint(attributeService, transactionService, true, 0);
+        first.open(KEY);
+        assertNull(first.getCursor());
+        first.save("2017-01-01T00:00:00.000Z|42", 1000L, 3L);
+
+        PurgeCheckpoint second = new PurgeCheckpoint(attributeService, transactionService, true, 0);
+        second.open(KEY);
+        assertEquals("2017-01-01T00:00:00.000Z|42", second.getCursor());
+        assertEquals(1000L, second.getDeletedNodes());
+        second.save("2017-02-01T00:00:00.000Z|4242", 500L, 1L);
+
+        // totals add up across the runs
+        PurgeCheckpoint third = new PurgeCheckpoint(attributeService, transactionService, true, 0);
+        third.open(KEY);
+        assertEquals("2017-02-01T00:00:00.000Z|4242", third.getCursor());
+        assertEquals(1500L, third.getDeletedNodes());
+        Map<?, ?> saved = (Map<?, ?>) attributes.get(Arrays.<Serializable> asList(RetainedNodeRegistry.ATTR_APP,
+                PurgeCheckpoint.ATTR_CHECKPOINT, 0));
+        assertEquals(4L, saved.get("retainedRoots"));
+
+        // bin read to the end: next run starts from the oldest node
+        third.clear();
+        PurgeCheckpoint fourth = new PurgeCheckpoint(attributeService, transactionService, true, 0);
+        fourth.open(KEY);
+        assertNull(fourth.getCursor());
+        assertEquals(0L, fourth.getDeletedNodes());
+    }
+
+    @Test
+    public void testOtherConfigurationIgnored()
+    {
+        PurgeCheckpoint first = new PurgeCheckpoint(attributeService, transactionService, true, 0);
+        first.open(KEY);
+        first.save("2017-01-01T00:00:00.000Z|42", 1000L, 3L);
+
+        // another candidate source or fingerprint: the cursor means nothing
+        PurgeCheckpoint second = new PurgeCheckpoint(attributeService, transactionService, true, 0);
+        second.open("cannedquery|1234abcd");
+        assertNull(second.getCursor());
+    }
+
+    @Test
+    public void testPartitions()
+    {
+        PurgeCheckpoint first = new PurgeCheckpoint(attributeService, transactionService, true, 0);
+        first.open(KEY);
+        first.save("2017-01-01T00:00:00.000Z|42", 1000L, 3L);
+
+        // each partition resumes from its own position
+        PurgeCheckpoint second = new PurgeCheckpoint(attributeService, transactionService, true, 1);
+        second.open(KEY);
+        assertNull(second.getCursor());
+        second.save("2017-03-01T00:00:00.000Z|4343", 10L, 0L);
+        PurgeCheckpoint third = new PurgeCheckpoint(attributeService, transactionService, true, 0);
+        third.open(KEY);
+        assertEquals("2017-01-01T00:00:00.000Z|42", third.getCursor());
+    }
+
+    @Test
+    public void testNotPersistent()
+    {
+        PurgeCheckpoint first = new PurgeCheckpoint(attributeService, transactionService, false, 0);
+        first.open(KEY);
+        first.save("2017-01-01T00:00:00.000Z|42", 1000L, 3L);
+        assertTrue(attributes.isEmpty());
+    }
+}
@@ -0,0 +1,141 @@
+package alternative.trashcancleaner.platformsample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Unit testing the token buckets limiting the purge rate and their windows by time of day
+ *
+ * @author Philippe
+ */
+public class PurgeRateLimiterTest
+{
+    private static final double DELTA = 0.001d;
+    private static final int NOON = 12 * 60;
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1L);
+
+    @Test
+    public void testNoLimit()
+    {
+        PurgeRateLimiter limiter = new PurgeRateLimiter(0d, 0d, "");
+        for (int i = 0; i < 100; i++)
+        {
+            assertEquals(0L, limiter.reserve(5000, NOON, 0L));
+        }
+    }
+
+    @Test
+    public void testNodesPerSecond()
+    {
+        PurgeRateLimiter limiter = new PurgeRateLimiter(100d, 0d, null);
+        // one second of nodes at once, then the next batch waits for its nodes
+        assertEquals(0L, limiter.reserve(100, NOON, 0L));
+        assertEquals(1000L, limiter.reserve(100, NOON, 0L));
+        // 150 nodes refilled, 50 owed
+        assertEquals(500L, limiter.reserve(100, NOON, 3L * SECOND / 2L));
+        // a batch larger than the rate is let through at the pace of the rate, after one second of nodes
+        assertEquals(4000L, limiter.reserve(500, NOON, 20L * SECOND));
+    }
+
+    @Test
+    public void testTransactionsPerSecond()
+    {
+        PurgeRateLimiter limiter = new PurgeRateLimiter(0d, 2d, null);
+        assertEquals(0L, limiter.reserve(500, NOON, 0L));
+        assertEquals(0L, limiter.reserve(500, NOON, 0L));
+        assertEquals(500L, limiter.reserve(500, NOON, 0L));
+        assertEquals(0L, limiter.reserve(500, NOON, 10L * SECOND));
+    }
+
+    @Test
+    public void testWindows()
+    {
+        PurgeRateLimiter limiter = new PurgeRateLimiter(0d, 0d, "07:00-20:00=200/2, 22:00-02:00=1000/0");
+
+        assertEquals(200d, limiter.getRate(8 * 60).getNodesPerSecond(), DELTA);
+        assertEquals(2d, limiter.getRate(8 * 60).getTransactionsPerSecond(), DELTA);
+        // end excluded
+        assertEquals(0d, limiter.getRate(20 * 60).getNodesPerSecond(), DELTA);
+        // spanning midnight
+        assertEquals(1000d, limiter.getRate(23 * 60).getNodesPerSecond(), DELTA);
+        assertEquals(1000d, limiter.getRate(60).getNodesPerSecond(), DELTA);
+        assertEquals(0d, limiter.getRate(3 * 60).getNodesPerSecond(), DELTA);
+
+        // the limit follows the time of day
+        assertEquals(0L, limiter.reserve(5000, 6 * 60, 0L));
+        assertEquals(0L, limiter.reserve(200, 8 * 60, SECOND));
+        assertEquals(1000L, limiter.reserve(200, 8 * 60, SECOND));
+    }
+
+    @Test
+    public void testInvalidWindows()
+    {
+        for (String windows : new String[] { "07:00=200/2", "07:00-20:00=200", "7h-20h=200/2", "07:00-25:00=1/1" })
+        {
+            try
+            {
+                new PurgeRateLimiter(0d, 0d, windows);
+                fail("Accepted " + windows);
+            }
+            catch (IllegalArgumentException e)
+            {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testLimitsChangeKeepsTokens()
+    {
+        PurgeRateLimiter limiter = new PurgeRateLimiter(100d, 0d, null);
+        assertEquals(0L, limiter.reserve(100, NOON, 0L));
+        // the bucket is not refilled by the change
+        limiter.setLimits(200d, 0d, null);
+        assertEquals(500L, limiter.reserve(100, NOON, 0L));
+        try
+        {
+            limiter.setLimits(10d, 0d, "invalid");
+            fail("Invalid windows accepted");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // the limits in force are kept
+        }
+        assertEquals(200d, limiter.getRate(NOON).getNodesPerSecond(), DELTA);
+    }
+
+    @Test
+    public void testRelease()
+    {
+        PurgeRateLimiter limiter = new PurgeRateLimiter(100d, 2d, null);
+        assertEquals(0L, limiter.reserve(100, NOON, 0L));
+        // the transaction deleted nothing, its nodes are charged once by the next ones
+        limiter.release(100);
+        assertEquals(0L, limiter.reserve(100, NOON, 0L));
+        // never more than one second of nodes
+        limiter.release(1000);
+        assertEquals(1000L, limiter.reserve(200, NOON, 0L));
+    }
+
+    @Test
+    public void testRuntimeChange()
+    {
+        TrashcanCleaner trashcanCleaner = new TrashcanCleaner();
+        trashcanCleaner.setRate(100d, 5d, "");
+        try
+        {
+            trashcanCleaner.setRate(10d, 1d, "invalid");
+            fail("Invalid windows accepted");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // the limits in force are kept
+        }
+        assertEquals(100d, trashcanCleaner.getNodesPerSecond(), DELTA);
+        assertEquals(5d, trashcanCleaner.getTransactionsPerSecond(), DELTA);
+    }
+}
@@ -0,0 +1,147 @@
+package alternative.trashcancleaner.platformsample;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.Pair;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Mocked repository for the tests deleting the nodes of a plan: node ids map to node references of the
+ * archive store, a deleted node no longer exists once its transaction has committed and the deletions of a
+ * failed transaction are rolled back. {@link #beforeDelete(NodeRef)} is overridden to slow down or fail the
+ * deletion of a node.
+ *
+ * @author Philippe
+ */
+class PurgeTestFixture
+{
+    static final StoreRef ARCHIVE_STORE_REF = new StoreRef("archive", "SpacesStore");
+
+    final NodeDAO nodeDAO;
+    final NodeService nodeService;
+    final TransactionService transactionService;
+    // committed deletions
+    final Set<NodeRef> deletedNodes = Collections.newSetFromMap(new ConcurrentHashMap<NodeRef, Boolean>());
+    // calls to deleteNode that succeeded, committed or not
+    final AtomicInteger deletions = new AtomicInteger();
+    final AtomicInteger numOfTransactions = new AtomicInteger();
+
+    // deletions of the transaction of the current thread, committed when it succeeds
+    private final ThreadLocal<List<NodeRef>> pendingDeletions = new ThreadLocal<List<NodeRef>>();
+
+    PurgeTestFixture()
+    {
+        nodeDAO = Mockito.mock(NodeDAO.class);
+        Mockito.when(nodeDAO.getNodePair(Mockito.anyLong())).thenAnswer(new Answer<Pair<Long, NodeRef>>()
+            {
+                public Pair<Long, NodeRef> answer(InvocationOnMock invocation) throws Throwable
+                {
+                    Long nodeId = (Long) invocation.getArguments()[0];
+                    NodeRef nodeRef = nodeRef(nodeId);
+                    return deletedNodes.contains(nodeRef) ? null : new Pair<Long, NodeRef>(nodeId, nodeRef);
+                }
+            });
+
+        nodeService = Mockito.mock(NodeService.class);
+        Mockito.doAnswer(new Answer<Object>()
+            {
+                public Object answer(InvocationOnMock invocation) throws Throwable
+                {
+                    NodeRef nodeRef = (NodeRef) invocation.getArguments()[0];
+                    beforeDelete(nodeRef);
+                    List<NodeRef> pending = pendingDeletions.get();
+                    if (pending == null)
+                    {
+                        deletedNodes.add(nodeRef);
+                    }
+                    else
+                    {
+                        pending.add(nodeRef);
+                    }
+                    deletions.incrementAndGet();
+                    return null;
+                }
+            }).when(nodeService).deleteNode(Mockito.any(NodeRef.class));
+
+        RetryingTransactionHelper txnHelper = Mockito.mock(RetryingTransactionHelper.class);
+        Mockito.when(
+                txnHelper.doInTransaction(Mockito.any(RetryingTransactionCallback.class), Mockito.anyBoolean(),
+                        Mockito.anyBoolean())).thenAnswer(new Answer<Object>()
+            {
+                public Object answer(InvocationOnMock invocation) throws Throwable
+                {
+                    numOfTransactions.incrementAndGet();
+                    List<NodeRef> pending = new ArrayList<NodeRef>();
+                    pendingDeletions.set(pending);
+                    try
+                    {
+                        // failures roll the transaction back
+                        Object result = ((RetryingTransactionCallback<?>) invocation.getArguments()[0]).execute();
+                        deletedNodes.addAll(pending);
+                        return result;
+                    }
+                    finally
+                    {
+                        pendingDeletions.remove();
+                    }
+                }
+            });
+        transactionService = Mockito.mock(TransactionService.class);
+        Mockito.when(transactionService.getRetryingTransactionHelper()).thenReturn(txnHelper);
+    }
+
+    static NodeRef nodeRef(long nodeId)
+    {
+        return new NodeRef(ARCHIVE_STORE_REF, String.format("00000000-0000-0000-0000-%012d", nodeId));
+    }
+
+    /**
+     * Called before a node is deleted, in its transaction
+     *
+     * @throws Exception to fail the deletion
+     */
+    protected void beforeDelete(NodeRef nodeRef) throws Exception
+    {
+    }
+
+    /**
+     * @return a cleaner on the mocked repository deleting batches of batchSize nodes
+     */
+    TrashcanCleaner createCleaner(int batchSize)
+    {
+        TrashcanCleaner trashcanCleaner = new TrashcanCleaner();
+        trashcanCleaner.setNodeDAO(nodeDAO);
+        trashcanCleaner.setNodeService(nodeService);
+        trashcanCleaner.setTransactionService(transactionService);
+        trashcanCleaner.setMinBatchSize(batchSize);
+        trashcanCleaner.setInitialBatchSize(batchSize);
+        return trashcanCleaner;
+    }
+
+    /**
+     * @return plan of the root 0 deleting the nodes 1 to numOfNodes in that order
+     */
+    static SubtreePurgePlan createPlan(int numOfNodes)
+    {
+        SubtreePurgePlan plan = new SubtreePurgePlan(nodeRef(0L));
+        for (long nodeId = 1; nodeId <= numOfNodes; nodeId++)
+        {
+            plan.add(nodeId);
+        }
+        return plan;
+    }
+}
@@ -0,0 +1,126 @@
+package alternative.trashcancleaner.platformsample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Set;
+
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.attributes.AttributeService.AttributeQueryCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.Pair;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Unit testing the loading of the index of retained nodes: entries of nodes restored or purged meanwhile and
+ * entries of another configuration are removed, the others are given to the candidate query to leave out
+ *
+ * @author Philippe
+ */
+public class RetainedNodeRegistryTest
+{
+    private static final StoreRef ARCHIVE_STORE_REF = new StoreRef("archive", "SpacesStore");
+    private static final String FINGERPRINT = "f";
+
+    private static final NodeRef PROTECTED_ROOT = nodeRef(1L);
+    private static final NodeRef RESTORED_ROOT = nodeRef(2L);
+    private static final NodeRef OTHER_CONFIGURATION_ROOT = nodeRef(3L);
+    private static final NodeRef QUARANTINED_ROOT = nodeRef(4L);
+
+    private AttributeService attributeService;
+    private RetainedNodeRegistry retainedNodes;
+
+    @Before
+    public void setUp()
+    {
+        RetryingTransactionHelper txnHelper = Mockito.mock(RetryingTransactionHelper.class);
+        Mockito.when(
+                txnHelper.doInTransaction(Mockito.any(RetryingTransactionCallback.class), Mockito.anyBoolean(),
+                        Mockito.anyBoolean())).thenAnswer(new Answer<Object>()
+            {
+                public Object answer(InvocationOnMock invocation) throws Throwable
+                {
+                    return ((RetryingTransactionCallback<?>) invocation.getArguments()[0]).execute();
+                }
+            });
+        TransactionService transactionService = Mockito.mock(TransactionService.class);
+        Mockito.when(transactionService.getRetryingTransactionHelper()).thenReturn(txnHelper);
+
+        attributeService = Mockito.mock(AttributeService.class);
+        Mockito.when(attributeService.getAttribute(RetainedNodeRegistry.ATTR_APP,
+                RetainedNodeRegistry.ATTR_FINGERPRINT)).thenReturn(FINGERPRINT);
+        Mockito.doAnswer(new Answer<Object>()
+            {
+                public Object answer(InvocationOnMock invocation) throws Throwable
+                {
+                    AttributeQueryCallback callback = (AttributeQueryCallback) invocation.getArguments()[0];
+                    callback.handleAttribute(1L, "PROTECTED|" + FINGERPRINT, keys(PROTECTED_ROOT));
+                    callback.handleAttribute(2L, "PROTECTED_DESCENDANT|" + FINGERPRINT, keys(RESTORED_ROOT));
+                    callback.handleAttribute(3L, "PROTECTED|other", keys(OTHER_CONFIGURATION_ROOT));
+                    callback.handleAttribute(4L, "QUARANTINED|" + FINGERPRINT, keys(QUARANTINED_ROOT));
+                    return null;
+                }
+            }).when(attributeService).getAttributes(Mockito.any(AttributeQueryCallback.class),
+                Mockito.eq(RetainedNodeRegistry.ATTR_APP), Mockito.eq(RetainedNodeRegistry.ATTR_RETAINED));
+
+        NodeDAO nodeDAO = Mockito.mock(NodeDAO.class);
+        for (NodeRef nodeRef : Arrays.asList(PROTECTED_ROOT, OTHER_CONFIGURATION_ROOT, QUARANTINED_ROOT))
+        {
+            Mockito.when(nodeDAO.getNodePair(nodeRef)).thenReturn(new Pair<Long, NodeRef>(1L, nodeRef));
+        }
+        // RESTORED_ROOT is no longer in the archive store
+
+        retainedNodes = new RetainedNodeRegistry(attributeService, transactionService, nodeDAO, true, 0L);
+        retainedNodes.open(FINGERPRINT);
+    }
+
+    private static NodeRef nodeRef(long nodeId)
+    {
+        return new NodeRef(ARCHIVE_STORE_REF, String.format("00000000-0000-0000-0000-%012d", nodeId));
+    }
+
+    private static Serializable[] keys(NodeRef nodeRef)
+    {
+        return new Serializable[] { RetainedNodeRegistry.ATTR_APP, RetainedNodeRegistry.ATTR_RETAINED,
+                nodeRef.toString() };
+    }
+
+    @Test
+    public void testStaleEntriesRemoved()
+    {
+        assertTrue(retainedNodes.isRetained(PROTECTED_ROOT));
+        assertTrue(retainedNodes.isRetained(QUARANTINED_ROOT));
+        assertFalse(retainedNodes.isRetained(RESTORED_ROOT));
+        assertFalse(retainedNodes.isRetained(OTHER_CONFIGURATION_ROOT));
+        Mockito.verify(attributeService).removeAttribute(RetainedNodeRegistry.ATTR_APP,
+                RetainedNodeRegistry.ATTR_RETAINED, RESTORED_ROOT.toString());
+        Mockito.verify(attributeService).removeAttribute(RetainedNodeRegistry.ATTR_APP,
+                RetainedNodeRegistry.ATTR_RETAINED, OTHER_CONFIGURATION_ROOT.toString());
+        Mockito.verify(attributeService, Mockito.never()).removeAttribute(RetainedNodeRegistry.ATTR_APP,
+                RetainedNodeRegistry.ATTR_RETAINED, PROTECTED_ROOT.toString());
+    }
+
+    @Test
+    public void testRetainedForQuery()
+    {
+        Set<NodeRef> excluded = retainedNodes.getRetained(10);
+        assertEquals(2, excluded.size());
+        assertTrue(excluded.contains(PROTECTED_ROOT));
+        assertTrue(excluded.contains(QUARANTINED_ROOT));
+        // the query is kept short
+        assertEquals(1, retainedNodes.getRetained(1).size());
+        assertTrue(retainedNodes.getRetained(0).isEmpty());
+    }
+}
@@ -0,0 +1,184 @@
+package alternative.trashcancleaner.platformsample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Unit testing the status transitions of the cleaner and how fast a disable stops a purge in the middle of
+ * a tree: the node being deleted is finished, the nodes deleted so far are committed and the plan is left
+ * on the first node not deleted
+ *
+ * @author Philippe
+ */
+public class StopLatencyTest
+{
+    private static final int NUM_OF_NODES = 1000;
+    private static final int BATCH_SIZE = 500;
+    // time taken to delete one node, a whole batch takes seconds
+    private static final long NODE_DELETION_MS = 5L;
+
+    private PurgeTestFixture fixture;
+    private TrashcanCleaner trashcanCleaner;
+    private JobLockService jobLockService;
+    // transitions seen by the listener
+    private List<String> transitions;
+
+    @Before
+    public void setUp()
+    {
+        transitions = Collections.synchronizedList(new ArrayList<String>());
+        fixture = new PurgeTestFixture()
+            {
+                @Override
+                protected void beforeDelete(NodeRef nodeRef) throws Exception
+                {
+                    Thread.sleep(NODE_DELETION_MS);
+                }
+            };
+
+        jobLockService = Mockito.mock(JobLockService.class);
+        Mockito.when(jobLockService.getLock(Mockito.any(QName.class), Mockito.anyLong())).thenReturn("token");
+
+        trashcanCleaner = fixture.createCleaner(BATCH_SIZE);
+        trashcanCleaner.setJobLockService(jobLockService);
+        // nothing is purged by execute(), only the status is exercised
+        trashcanCleaner.setProtectedDays(0);
+        trashcanCleaner.addStatusListener(new TrashcanCleaner.StatusListener()
+            {
+                public void statusChanged(TrashcanCleaner.Status previous, TrashcanCleaner.Status current)
+                {
+                    transitions.add(previous + ">" + current);
+                }
+            });
+    }
+
+    @Test
+    public void testDisableMidBatch() throws Exception
+    {
+        final SubtreePurgePlan plan = PurgeTestFixture.createPlan(NUM_OF_NODES);
+        final AtomicInteger deleted = new AtomicInteger();
+        Thread purge = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    while (!trashcanCleaner.mustStop() && plan.hasNext())
+                    {
+                        deleted.addAndGet(trashcanCleaner.deleteNextBatch(plan));
+                    }
+                }
+            });
+        purge.start();
+        // well inside the first batch
+        while (fixture.deletions.get() < 20)
+        {
+            Thread.sleep(1L);
+        }
+
+        trashcanCleaner.Disable();
+        int deletionsWhenDisabled = fixture.deletions.get();
+        purge.join(10000L);
+
+        assertFalse(purge.isAlive());
+        // only the node being deleted when disabled is finished
+        assertTrue(fixture.deletions.get() <= deletionsWhenDisabled + 1);
+        assertTrue(deleted.get() < BATCH_SIZE);
+        assertEquals(fixture.deletedNodes.size(), deleted.get());
+        // the plan resumes on the first node not deleted
+        assertTrue(plan.hasNext());
+        assertEquals(Long.valueOf(deleted.get() + 1), plan.peekBatch(1).get(0));
+    }
+
+    @Test
+    public void testTransitions()
+    {
+        assertEquals(TrashcanCleaner.Status.STOPPED, trashcanCleaner.stop());
+        assertEquals(TrashcanCleaner.Status.STOPPED, trashcanCleaner.Disable());
+        assertEquals(TrashcanCleaner.Status.DISABLED, trashcanCleaner.stop());
+        // disabled, the job does not run
+        trashcanCleaner.execute();
+        Mockito.verify(jobLockService, Mockito.never()).getLock(Mockito.any(QName.class), Mockito.anyLong());
+        assertEquals(TrashcanCleaner.Status.DISABLED, trashcanCleaner.Enable());
+        assertEquals(TrashcanCleaner.Status.STOPPED, trashcanCleaner.Enable());
+
+        trashcanCleaner.execute();
+
+        assertEquals(TrashcanCleaner.Status.STOPPED, trashcanCleaner.getStatus());
+        List<String> expected = new ArrayList<String>();
+        expected.add("STOPPED>DISABLED");
+        expected.add("DISABLED>STOPPED");
+        expected.add("STOPPED>RUNNING");
+        expected.add("RUNNING>STOPPED");
+        assertEquals(expected, transitions);
+    }
+
+    @Test
+    public void testDisabledWhileRunning()
+    {
+        trashcanCleaner.addStatusListener(new TrashcanCleaner.StatusListener()
+            {
+                public void statusChanged(TrashcanCleaner.Status previous, TrashcanCleaner.Status current)
+                {
+                    if (current == TrashcanCleaner.Status.RUNNING)
+                    {
+                        trashcanCleaner.Disable();
+                    }
+                }
+            });
+
+        trashcanCleaner.execute();
+
+        // the end of the run does not enable the cleaner again
+        assertEquals(TrashcanCleaner.Status.DISABLED, trashcanCleaner.getStatus());
+        assertTrue(transitions.contains("RUNNING>DISABLING"));
+        assertTrue(transitions.contains("DISABLING>DISABLED"));
+    }
+
+    @Test
+    public void testEnableWhileDisabling()
+    {
+        final List<TrashcanCleaner.Status> enabled = new ArrayList<TrashcanCleaner.Status>();
+        trashcanCleaner.addStatusListener(new TrashcanCleaner.StatusListener()
+            {
+                public void statusChanged(TrashcanCleaner.Status previous, TrashcanCleaner.Status current)
+                {
+                    if (current == TrashcanCleaner.Status.RUNNING)
+                    {
+                        trashcanCleaner.Disable();
+                    }
+                    else if (current == TrashcanCleaner.Status.DISABLING)
+                    {
+                        // the run is still ending, it must not be reported as stopped
+                        enabled.add(trashcanCleaner.Enable());
+                        enabled.add(trashcanCleaner.getStatus());
+                    }
+                }
+            });
+
+        trashcanCleaner.execute();
+
+        assertEquals(TrashcanCleaner.Status.DISABLING, enabled.get(0));
+        assertEquals(TrashcanCleaner.Status.DISABLING, enabled.get(1));
+        assertEquals(TrashcanCleaner.Status.DISABLED, trashcanCleaner.getStatus());
+        List<String> expected = new ArrayList<String>();
+        expected.add("STOPPED>RUNNING");
+        expected.add("RUNNING>DISABLING");
+        expected.add("DISABLING>DISABLED");
+        assertEquals(expected, transitions);
+        // enabled once the run is over
+        assertEquals(TrashcanCleaner.Status.DISABLED, trashcanCleaner.Enable());
+        assertEquals(TrashcanCleaner.Status.STOPPED, trashcanCleaner.getStatus());
+    }
+}
@@ -0,0 +1,147 @@
+package alternative.trashcancleaner.platformsample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit testing the split of a large plan in branches deleted concurrently: branches hold complete subtrees,
+ * the nodes left in the plan only have descendants in the branches or before them
+ *
+ * @author Philippe
+ */
+public class SubtreeSplitTest
+{
+    private static final NodeRef ROOT = new NodeRef(new StoreRef("archive", "SpacesStore"), "root");
+    private static final int MAX_BRANCH_NODES = 10;
+
+    private long nextNodeId;
+    private Map<Long, List<Long>> children;
+
+    @Before
+    public void setUp()
+    {
+        nextNodeId = 1L;
+        children = new HashMap<Long, List<Long>>();
+    }
+
+    /**
+     * Add a tree in post-order the way the planning walk does, fanouts gives the number of children by level
+     */
+    private long addTree(SubtreePurgePlan plan, int[] fanouts, int level)
+    {
+        long nodeId = nextNodeId++;
+        int start = plan.size();
+        List<Long> nodeChildren = new ArrayList<Long>();
+        for (int i = 0; level < fanouts.length && i < fanouts[level]; i++)
+        {
+            nodeChildren.add(addTree(plan, fanouts, level + 1));
+        }
+        children.put(nodeId, nodeChildren);
+        plan.add(nodeId, start);
+        return nodeId;
+    }
+
+    private static List<Long> drain(SubtreePurgePlan plan)
+    {
+        List<Long> nodeIds = plan.peekBatch(plan.size());
+        plan.advance(nodeIds.size());
+        return nodeIds;
+    }
+
+    /**
+     * Check every node is deleted once and only after its children
+     */
+    private void checkSplit(List<SubtreePurgePlan> branches, SubtreePurgePlan plan)
+    {
+        Map<Long, Integer> branchOf = new HashMap<Long, Integer>();
+        for (int b = 0; b < branches.size(); b++)
+        {
+            assertTrue(branches.get(b).size() <= MAX_BRANCH_NODES);
+            List<Long> nodeIds = drain(branches.get(b));
+            for (Long nodeId : nodeIds)
+            {
+                for (Long child : children.get(nodeId))
+                {
+                    // complete subtrees, children first
+                    assertEquals(Integer.valueOf(b), branchOf.get(child));
+                }
+                branchOf.put(nodeId, b);
+            }
+        }
+        for (Long nodeId : drain(plan))
+        {
+            for (Long child : children.get(nodeId))
+            {
+                // deleted by a branch or earlier in the plan
+                assertTrue(branchOf.containsKey(child));
+            }
+            branchOf.put(nodeId, -1);
+        }
+        assertEquals(children.size(), branchOf.size());
+    }
+
+    @Test
+    public void testSplitTree()
+    {
+        SubtreePurgePlan plan = new SubtreePurgePlan(ROOT);
+        // 1 + 4 + 12 + 60 nodes, subtrees of the second level have 6 nodes
+        addTree(plan, new int[] { 4, 3, 5 }, 0);
+
+        List<SubtreePurgePlan> branches = plan.splitBranches(MAX_BRANCH_NODES);
+
+        assertEquals(12, branches.size());
+        assertEquals(5, plan.size());
+        checkSplit(branches, plan);
+    }
+
+    @Test
+    public void testSmallTreesShareBranches()
+    {
+        SubtreePurgePlan plan = new SubtreePurgePlan(ROOT);
+        addTree(plan, new int[] { 25 }, 0);
+
+        List<SubtreePurgePlan> branches = plan.splitBranches(MAX_BRANCH_NODES);
+
+        assertEquals(3, branches.size());
+        assertEquals(1, plan.size());
+        checkSplit(branches, plan);
+    }
+
+    @Test
+    public void testKeptRoot()
+    {
+        // the root is kept, the plan is a forest of the trees below it
+        SubtreePurgePlan plan = new SubtreePurgePlan(ROOT);
+        for (int i = 0; i < 3; i++)
+        {
+            addTree(plan, new int[] { 3, 5 }, 0);
+        }
+        plan.setProtectedNodeFound();
+
+        List<SubtreePurgePlan> branches = plan.splitBranches(MAX_BRANCH_NODES);
+
+        assertEquals(9, branches.size());
+        assertEquals(3, plan.size());
+        checkSplit(branches, plan);
+    }
+
+    @Test
+    public void testSmallPlanNotSplit()
+    {
+        SubtreePurgePlan plan = new SubtreePurgePlan(ROOT);
+        addTree(plan, new int[] { 9 }, 0);
+
+        assertTrue(plan.splitBranches(MAX_BRANCH_NODES).isEmpty());
+        assertEquals(10, plan.size());
+    }
+}
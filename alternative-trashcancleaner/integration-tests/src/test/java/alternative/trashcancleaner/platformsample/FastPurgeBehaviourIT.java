@@ -0,0 +1,250 @@
+package alternative.trashcancleaner.platformsample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.rad.test.AbstractAlfrescoIT;
+import org.alfresco.rad.test.AlfrescoTestRunner;
+import org.alfresco.rad.test.Remote;
+import org.alfresco.repo.policy.BehaviourFilter;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.version.VersionService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.log4j.Logger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Integration Test of the fast purge mode (behaviours of the allow-list disabled while purging).
+ * <p>
+ * The same bin of versioned documents is purged with and without the behaviours, the throughput of both
+ * runs is logged. In both cases the documents must be gone and their version histories removed.
+ *
+ * @author Philippe
+ */
+@RunWith(value = AlfrescoTestRunner.class)
+@Remote(endpoint = "http://localhost:8080/alfresco")
+public class FastPurgeBehaviourIT extends AbstractAlfrescoIT
+{
+    private static final int NODE_CREATION_BATCH_SIZE = 200;
+    private static final StoreRef ARCHIVE_STORE_REF = new StoreRef("archive", "SpacesStore");
+    private static final StoreRef VERSION_STORE_REF = new StoreRef("workspace", "version2Store");
+
+    static Logger log = Logger.getLogger(FastPurgeBehaviourIT.class);
+
+    protected NodeService nodeService;
+
+    protected BehaviourFilter policyBehaviourFilter;
+
+    protected VersionService versionService;
+
+    protected TrashcanCleaner trashcanCleaner;
+
+    private TransactionService transactionService;
+
+    protected void initFields()
+    {
+        if (nodeService == null)
+        {
+            nodeService = (NodeService) getApplicationContext().getBean("NodeService");
+        }
+
+        if (policyBehaviourFilter == null)
+        {
+            policyBehaviourFilter = (BehaviourFilter) getApplicationContext().getBean("policyBehaviourFilter");
+        }
+
+        if (versionService == null)
+        {
+            versionService = (VersionService) getApplicationContext().getBean("VersionService");
+        }
+
+        if (trashcanCleaner == null)
+        {
+            trashcanCleaner = (TrashcanCleaner) getApplicationContext().getBean("trashcanCleaner");
+        }
+
+        if (transactionService == null)
+        {
+            transactionService = (TransactionService) getApplicationContext().getBean("TransactionService");
+        }
+    }
+
+    @Test
+    public void testFastPurgeThroughput()
+    {
+        initFields();
+        int numOfNodes = Integer.getInteger("alt.trashcan.cleaner.it.fastpurge.nodes", 2000);
+
+        double normalRate = purge(numOfNodes, false);
+        double fastRate = purge(numOfNodes, true);
+        log.info("Purge throughput: " + Math.round(normalRate) + " nodes/s with behaviours, " + Math.round(fastRate)
+                + " nodes/s in fast purge mode, gain x" + Math.round(fastRate * 100.0 / normalRate) / 100.0);
+    }
+
+    /**
+     * Fill the bin, purge it and check nothing has been left behind
+     *
+     * @return number of nodes purged per second
+     */
+    private double purge(int numOfNodes, boolean suppressBehaviours)
+    {
+        insureBinEmpty();
+        int versionHistories = countVersionHistories();
+        List<NodeRef> archivedRefs = populateBin(numOfNodes);
+        assertEquals(versionHistories + numOfNodes, countVersionHistories());
+
+        long start = System.currentTimeMillis();
+        trashcanCleaner.setSuppressPurgeBehaviours(suppressBehaviours);
+        try
+        {
+            AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Object>()
+                {
+                    public Object doWork() throws Exception
+                    {
+                        trashcanCleaner.execute();
+                        return null;
+                    }
+                }, AuthenticationUtil.getSystemUserName());
+        }
+        finally
+        {
+            trashcanCleaner.setSuppressPurgeBehaviours(false);
+        }
+        long elapsed = Math.max(1L, System.currentTimeMillis() - start);
+
+        // nothing left behind: documents and their version histories are gone
+        assertEquals(0, countExisting(archivedRefs));
+        assertEquals(versionHistories, countVersionHistories());
+        assertTrue(trashcanCleaner.getDeletedNodesCount() >= numOfNodes);
+        return numOfNodes * 1000.0 / elapsed;
+    }
+
+    /**
+     * Create versioned documents and delete them, archived long enough ago to be purged
+     *
+     * @return archived documents
+     */
+    protected List<NodeRef> populateBin(final int numOfNodes)
+    {
+        Calendar cal = Calendar.getInstance();
+        cal.set(1974, Calendar.MAY, 28, 17, 30, 0);
+        final Date archivedDate = cal.getTime();
+        final NodeRef parent = doInSystemTransaction(new RetryingTransactionCallback<NodeRef>()
+            {
+                public NodeRef execute() throws Exception
+                {
+                    NodeRef root = nodeService.getRootNode(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE);
+                    return nodeService.createNode(root, ContentModel.ASSOC_CHILDREN,
+                            QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI,
+                                    "fastPurgeIT" + System.currentTimeMillis()),
+                            ContentModel.TYPE_FOLDER).getChildRef();
+                }
+            }, false);
+
+        final List<NodeRef> archivedRefs = new ArrayList<NodeRef>(numOfNodes);
+        for (int created = 0; created < numOfNodes; created += NODE_CREATION_BATCH_SIZE)
+        {
+            final int fCount = Math.min(NODE_CREATION_BATCH_SIZE, numOfNodes - created);
+            final int fCreated = created;
+            archivedRefs.addAll(doInSystemTransaction(new RetryingTransactionCallback<List<NodeRef>>()
+                {
+                    public List<NodeRef> execute() throws Exception
+                    {
+                        List<NodeRef> batch = new ArrayList<NodeRef>(fCount);
+                        for (int i = 0; i < fCount; i++)
+                        {
+                            NodeRef nodeRef = nodeService.createNode(parent, ContentModel.ASSOC_CONTAINS,
+                                    QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, "doc" + (fCreated + i)),
+                                    ContentModel.TYPE_CONTENT).getChildRef();
+                            versionService.ensureVersioningEnabled(nodeRef, null);
+                            nodeService.deleteNode(nodeRef);
+                            NodeRef archivedRef = new NodeRef(ARCHIVE_STORE_REF, nodeRef.getId());
+                            policyBehaviourFilter.disableBehaviour(archivedRef, ContentModel.ASPECT_ARCHIVED);
+                            try
+                            {
+                                nodeService.setProperty(archivedRef, ContentModel.PROP_ARCHIVED_DATE, archivedDate);
+                            }
+                            finally
+                            {
+                                policyBehaviourFilter.enableBehaviour(archivedRef, ContentModel.ASPECT_ARCHIVED);
+                            }
+                            batch.add(archivedRef);
+                        }
+                        return batch;
+                    }
+                }, false));
+        }
+        return archivedRefs;
+    }
+
+    protected void insureBinEmpty()
+    {
+        doInSystemTransaction(new RetryingTransactionCallback<Object>()
+            {
+                public Object execute() throws Exception
+                {
+                    NodeRef archiveRoot = nodeService.getRootNode(ARCHIVE_STORE_REF);
+                    for (ChildAssociationRef childAssoc : nodeService.getChildAssocs(archiveRoot))
+                    {
+                        nodeService.deleteNode(childAssoc.getChildRef());
+                    }
+                    return null;
+                }
+            }, false);
+    }
+
+    private int countVersionHistories()
+    {
+        return doInSystemTransaction(new RetryingTransactionCallback<Integer>()
+            {
+                public Integer execute() throws Exception
+                {
+                    return nodeService.countChildAssocs(nodeService.getRootNode(VERSION_STORE_REF), true);
+                }
+            }, true);
+    }
+
+    private int countExisting(final List<NodeRef> nodeRefs)
+    {
+        return doInSystemTransaction(new RetryingTransactionCallback<Integer>()
+            {
+                public Integer execute() throws Exception
+                {
+                    int existing = 0;
+                    for (NodeRef nodeRef : nodeRefs)
+                    {
+                        if (nodeService.exists(nodeRef))
+                        {
+                            existing++;
+                        }
+                    }
+                    return existing;
+                }
+            }, true);
+    }
+
+    private <R> R doInSystemTransaction(final RetryingTransactionCallback<R> work, final boolean readOnly)
+    {
+        return AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<R>()
+            {
+                public R doWork() throws Exception
+                {
+                    return transactionService.getRetryingTransactionHelper().doInTransaction(work, readOnly, true);
+                }
+            }, AuthenticationUtil.getSystemUserName());
+    }
+}
@@ -0,0 +1,78 @@
+package alternative.trashcancleaner.platformsample;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+
+/**
+ * Record the highest live heap seen while running: the usage of the heap pools right after their last
+ * collection, so short lived garbage does not count.
+ *
+ * @author Philippe
+ */
+class HeapSampler extends Thread
+{
+    private volatile boolean running = true;
+    private volatile long maxUsed = 0;
+
+    HeapSampler()
+    {
+        super("HeapSampler");
+        setDaemon(true);
+    }
+
+    static long liveHeap()
+    {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            MemoryUsage usage = (pool.getType() == MemoryType.HEAP) ? pool.getCollectionUsage() : null;
+            if (usage != null)
+            {
+                used += usage.getUsed();
+            }
+        }
+        return used;
+    }
+
+    @Override
+    public void run()
+    {
+        while (running)
+        {
+            long used = liveHeap();
+            if (used > maxUsed)
+            {
+                maxUsed = used;
+            }
+            try
+            {
+                Thread.sleep(20);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+
+    void shutdown()
+    {
+        running = false;
+        interrupt();
+        try
+        {
+            join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    long getMaxUsed()
+    {
+        return maxUsed;
+    }
+}
@@ -0,0 +1,76 @@
+package alternative.trashcancleaner.platformsample;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.rad.test.AbstractAlfrescoIT;
+import org.alfresco.rad.test.AlfrescoTestRunner;
+import org.alfresco.rad.test.Remote;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+import org.apache.log4j.Logger;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Benchmark of the cost of one protection check against the closure of the protected types built from the
+ * models of the repository.
+ * <p>
+ * The benchmark only runs when the container is started with -Dalt.trashcan.cleaner.it.benchmark=true, the
+ * number of checks can be changed with -Dalt.trashcan.cleaner.it.benchmark.checks.
+ *
+ * @author Philippe
+ */
+@RunWith(value = AlfrescoTestRunner.class)
+@Remote(endpoint = "http://localhost:8080/alfresco")
+public class ProtectionCheckBenchmarkIT extends AbstractAlfrescoIT
+{
+    private static final QName SITE = QName.createQName("{http://www.alfresco.org/model/site/1.0}site");
+    private static final NodeRef NODE_REF = new NodeRef("archive://SpacesStore/00000000-0000-0000-0000-000000000000");
+
+    static Logger log = Logger.getLogger(ProtectionCheckBenchmarkIT.class);
+
+    protected TrashcanCleaner trashcanCleaner;
+
+    protected void initFields()
+    {
+        if (trashcanCleaner == null)
+        {
+            trashcanCleaner = (TrashcanCleaner) getApplicationContext().getBean("trashcanCleaner");
+        }
+    }
+
+    @Test
+    public void testCostPerCheck()
+    {
+        Assume.assumeTrue(Boolean.getBoolean("alt.trashcan.cleaner.it.benchmark"));
+        initFields();
+        final int numOfChecks = Integer.getInteger("alt.trashcan.cleaner.it.benchmark.checks", 1000000);
+        List<QName> types = Arrays.asList(SITE, ContentModel.TYPE_FOLDER, ContentModel.TYPE_CONTENT,
+                ContentModel.TYPE_CMOBJECT);
+
+        // warm up
+        for (int i = 0; i < numOfChecks; i++)
+        {
+            trashcanCleaner.mustBeProtected(NODE_REF, types.get(i % types.size()));
+        }
+        int numOfProtected = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < numOfChecks; i++)
+        {
+            if (trashcanCleaner.mustBeProtected(NODE_REF, types.get(i % types.size())))
+            {
+                numOfProtected++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        log.info("Protection check: " + (elapsed / numOfChecks) + " ns per check over " + numOfChecks
+                + " checks, " + numOfProtected + " protected");
+        // sites are always protected
+        assertTrue(numOfProtected >= numOfChecks / types.size());
+    }
+}
@@ -0,0 +1,253 @@
+package alternative.trashcancleaner.platformsample;
+
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.rad.test.AbstractAlfrescoIT;
+import org.alfresco.rad.test.AlfrescoTestRunner;
+import org.alfresco.rad.test.Remote;
+import org.alfresco.repo.policy.BehaviourFilter;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.log4j.Logger;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Memory test of the paged candidate query against a very large bin.
+ * <p>
+ * The bin is filled with 1M archived nodes, then the search candidate source walks the whole bin page by page
+ * while a sampler records the heap still in use after each garbage collection. The growth of that live heap
+ * over the walk must stay within a budget that does not depend on the size of the bin.
+ * <p>
+ * The test is long (filling the bin takes a while) and only runs when the container is started with
+ * -Dalt.trashcan.cleaner.it.memory=true. It is meant to be run with a small fixed heap, e.g.
+ * MAVEN_OPTS="-Xms512m -Xmx512m" ./run.sh, the test itself can not size the heap of the remote container.
+ * The number of nodes and the heap budget can be changed with -Dalt.trashcan.cleaner.it.memory.nodes and
+ * -Dalt.trashcan.cleaner.it.memory.budget (in MB).
+ *
+ * @author Philippe
+ */
+@RunWith(value = AlfrescoTestRunner.class)
+@Remote(endpoint = "http://localhost:8080/alfresco")
+public class StreamingQueryMemoryIT extends AbstractAlfrescoIT
+{
+    private static final int NODE_CREATION_BATCH_SIZE = 2000;
+    private static final int PAGE_LEN = 1000;
+    private static final long MB = 1024L * 1024L;
+    private static final StoreRef ARCHIVE_STORE_REF = new StoreRef("archive", "SpacesStore");
+
+    static Logger log = Logger.getLogger(StreamingQueryMemoryIT.class);
+
+    protected NodeService nodeService;
+
+    protected SearchService searchService;
+
+    protected TrashcanCleaner trashcanCleaner;
+
+    protected BehaviourFilter policyBehaviourFilter;
+
+    private TransactionService transactionService;
+
+    protected void initFields()
+    {
+        if (nodeService == null)
+        {
+            nodeService = (NodeService) getApplicationContext().getBean("NodeService");
+        }
+
+        if (searchService == null)
+        {
+            searchService = (SearchService) getApplicationContext().getBean("SearchService");
+        }
+
+        if (trashcanCleaner == null)
+        {
+            trashcanCleaner = (TrashcanCleaner) getApplicationContext().getBean("trashcanCleaner");
+        }
+
+        if (policyBehaviourFilter == null)
+        {
+            policyBehaviourFilter = (BehaviourFilter) getApplicationContext().getBean("policyBehaviourFilter");
+        }
+
+        if (transactionService == null)
+        {
+            transactionService = (TransactionService) getApplicationContext().getBean("TransactionService");
+        }
+    }
+
+    @Test
+    public void testWalkMillionNodesBinWithBoundedHeap()
+    {
+        Assume.assumeTrue(Boolean.getBoolean("alt.trashcan.cleaner.it.memory"));
+        initFields();
+        final int numOfNodes = Integer.getInteger("alt.trashcan.cleaner.it.memory.nodes", 1000000);
+        final long budget = Long.getLong("alt.trashcan.cleaner.it.memory.budget", 128L) * MB;
+
+        populateBin(numOfNodes);
+        try
+        {
+            final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+            memoryBean.gc();
+            final long baseline = HeapSampler.liveHeap();
+            HeapSampler sampler = new HeapSampler();
+            sampler.start();
+            int seen;
+            try
+            {
+                seen = walkBin();
+            }
+            finally
+            {
+                sampler.shutdown();
+            }
+            long growth = sampler.getMaxUsed() - baseline;
+            log.info("Walked " + seen + " nodes, max heap " + sampler.getMaxUsed() / MB + "MB, baseline "
+                    + baseline / MB + "MB, growth " + growth / MB + "MB, max allowed " + budget / MB + "MB");
+            // the bin may hold nodes left by other tests
+            assertTrue(seen >= numOfNodes);
+            assertTrue("Heap growth " + growth / MB + "MB over budget", growth <= budget);
+        }
+        finally
+        {
+            emptyBin();
+        }
+    }
+
+    /**
+     * Walk the whole bin the way the cleaner does, one read only transaction per page
+     *
+     * @return the number of nodes seen
+     */
+    private int walkBin()
+    {
+        final SearchCandidateSource source = new SearchCandidateSource(nodeService, searchService,
+                "ASPECT:\"sys:archived\" ");
+        source.setCutoff(new Date());
+        final RetryingTransactionCallback<Integer> pageWork = new RetryingTransactionCallback<Integer>()
+            {
+                public Integer execute() throws Exception
+                {
+                    List<NodeRef> page = source.nextPage(PAGE_LEN);
+                    return page.size();
+                }
+            };
+        return AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Integer>()
+            {
+                public Integer doWork() throws Exception
+                {
+                    int seen = 0;
+                    int read;
+                    while ((read = transactionService.getRetryingTransactionHelper().doInTransaction(pageWork, true,
+                            true)) > 0)
+                    {
+                        seen += read;
+                    }
+                    return seen;
+                }
+            }, AuthenticationUtil.getSystemUserName());
+    }
+
+    /**
+     * Create and delete nodes by batches until the bin holds numOfNodes archived roots,
+     * archived long enough ago to be purged by the cleaner
+     */
+    protected void populateBin(final int numOfNodes)
+    {
+        Calendar cal = Calendar.getInstance();
+        cal.set(1974, Calendar.MAY, 28, 17, 30, 0);
+        final Date archivedDate = cal.getTime();
+        final NodeRef parent = AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<NodeRef>()
+            {
+                public NodeRef doWork() throws Exception
+                {
+                    return transactionService.getRetryingTransactionHelper().doInTransaction(
+                            new RetryingTransactionCallback<NodeRef>()
+                                {
+                                    public NodeRef execute() throws Exception
+                                    {
+                                        NodeRef root = nodeService
+                                                .getRootNode(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE);
+                                        return nodeService.createNode(root, ContentModel.ASSOC_CHILDREN,
+                                                QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI,
+                                                        "memoryIT" + System.currentTimeMillis()),
+                                                ContentModel.TYPE_FOLDER).getChildRef();
+                                    }
+                                }, false, true);
+                }
+            }, AuthenticationUtil.getSystemUserName());
+
+        AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Object>()
+            {
+                public Object doWork() throws Exception
+                {
+                    for (int created = 0; created < numOfNodes; created += NODE_CREATION_BATCH_SIZE)
+                    {
+                        final int fBatch = Math.min(NODE_CREATION_BATCH_SIZE, numOfNodes - created);
+                        transactionService.getRetryingTransactionHelper().doInTransaction(
+                                new RetryingTransactionCallback<Object>()
+                                    {
+                                        public Object execute() throws Exception
+                                        {
+                                            for (int i = 0; i < fBatch; i++)
+                                            {
+                                                NodeRef nodeRef = nodeService.createNode(parent,
+                                                        ContentModel.ASSOC_CONTAINS,
+                                                        QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI,
+                                                                "node" + i),
+                                                        ContentModel.TYPE_CONTENT).getChildRef();
+                                                nodeService.deleteNode(nodeRef);
+                                                NodeRef archivedRef = new NodeRef(ARCHIVE_STORE_REF, nodeRef.getId());
+                                                policyBehaviourFilter.disableBehaviour(archivedRef,
+                                                        ContentModel.ASPECT_ARCHIVED);
+                                                try
+                                                {
+                                                    nodeService.setProperty(archivedRef,
+                                                            ContentModel.PROP_ARCHIVED_DATE, archivedDate);
+                                                }
+                                                finally
+                                                {
+                                                    policyBehaviourFilter.enableBehaviour(archivedRef,
+                                                            ContentModel.ASPECT_ARCHIVED);
+                                                }
+                                            }
+                                            return null;
+                                        }
+                                    }, false, true);
+                        if (log.isDebugEnabled())
+                        {
+                            log.debug("Archived " + (created + fBatch) + " nodes");
+                        }
+                    }
+                    return null;
+                }
+            }, AuthenticationUtil.getSystemUserName());
+    }
+
+    protected void emptyBin()
+    {
+        AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Object>()
+            {
+                public Object doWork() throws Exception
+                {
+                    trashcanCleaner.execute();
+                    return null;
+                }
+            }, AuthenticationUtil.getSystemUserName());
+    }
+}
@@ -0,0 +1,256 @@
+package alternative.trashcancleaner.platformsample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.rad.test.AbstractAlfrescoIT;
+import org.alfresco.rad.test.AlfrescoTestRunner;
+import org.alfresco.rad.test.Remote;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.log4j.Logger;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Benchmark of the planning and the deletion of very deep and very wide archived subtrees.
+ * <p>
+ * The deep tree is a chain of 1000 nested folders, the wide tree a folder with 100k documents and the huge
+ * folder one with 300k documents. Planning must not depend on the call stack and the trees must be deleted
+ * completely, timings and the growth of the live heap are logged. Children are read page by page, so on the
+ * huge folder the heap only grows by the plan itself (8 bytes per node) and must stay within a budget.
+ * <p>
+ * Building the trees takes a while, the benchmark only runs when the container is started with
+ * -Dalt.trashcan.cleaner.it.benchmark=true. Sizes can be changed with -Dalt.trashcan.cleaner.it.benchmark.depth,
+ * -Dalt.trashcan.cleaner.it.benchmark.width and -Dalt.trashcan.cleaner.it.benchmark.hugewidth, the heap budget
+ * with -Dalt.trashcan.cleaner.it.benchmark.budget (in MB).
+ *
+ * @author Philippe
+ */
+@RunWith(value = AlfrescoTestRunner.class)
+@Remote(endpoint = "http://localhost:8080/alfresco")
+public class SubtreePlanningBenchmarkIT extends AbstractAlfrescoIT
+{
+    private static final int NODE_CREATION_BATCH_SIZE = 2000;
+    private static final int DELETE_BATCH_SIZE = 500;
+    private static final long MB = 1024L * 1024L;
+    private static final StoreRef ARCHIVE_STORE_REF = new StoreRef("archive", "SpacesStore");
+
+    static Logger log = Logger.getLogger(SubtreePlanningBenchmarkIT.class);
+
+    protected NodeService nodeService;
+
+    protected TrashcanCleaner trashcanCleaner;
+
+    private TransactionService transactionService;
+
+    protected void initFields()
+    {
+        if (nodeService == null)
+        {
+            nodeService = (NodeService) getApplicationContext().getBean("NodeService");
+        }
+
+        if (trashcanCleaner == null)
+        {
+            trashcanCleaner = (TrashcanCleaner) getApplicationContext().getBean("trashcanCleaner");
+        }
+
+        if (transactionService == null)
+        {
+            transactionService = (TransactionService) getApplicationContext().getBean("TransactionService");
+        }
+    }
+
+    @Test
+    public void testDeepTree()
+    {
+        Assume.assumeTrue(Boolean.getBoolean("alt.trashcan.cleaner.it.benchmark"));
+        initFields();
+        final int depth = Integer.getInteger("alt.trashcan.cleaner.it.benchmark.depth", 1000);
+
+        final NodeRef top = createFolder("deepIT" + System.currentTimeMillis());
+        NodeRef parent = top;
+        for (int level = 1; level < depth; level += NODE_CREATION_BATCH_SIZE)
+        {
+            final NodeRef fParent = parent;
+            final int fLevel = level;
+            final int fCount = Math.min(NODE_CREATION_BATCH_SIZE, depth - level);
+            parent = doInSystemTransaction(new RetryingTransactionCallback<NodeRef>()
+                {
+                    public NodeRef execute() throws Exception
+                    {
+                        NodeRef current = fParent;
+                        for (int i = 0; i < fCount; i++)
+                        {
+                            current = createChild(current, "level" + (fLevel + i), ContentModel.TYPE_FOLDER);
+                        }
+                        return current;
+                    }
+                }, false);
+        }
+        benchmark("deep", archive(top), depth);
+    }
+
+    @Test
+    public void testWideTree()
+    {
+        Assume.assumeTrue(Boolean.getBoolean("alt.trashcan.cleaner.it.benchmark"));
+        initFields();
+        final int width = Integer.getInteger("alt.trashcan.cleaner.it.benchmark.width", 100000);
+
+        benchmark("wide", archive(createWideFolder("wideIT" + System.currentTimeMillis(), width)), width + 1);
+    }
+
+    @Test
+    public void testHugeFolder()
+    {
+        Assume.assumeTrue(Boolean.getBoolean("alt.trashcan.cleaner.it.benchmark"));
+        initFields();
+        final int width = Integer.getInteger("alt.trashcan.cleaner.it.benchmark.hugewidth", 300000);
+        final long budget = Long.getLong("alt.trashcan.cleaner.it.benchmark.budget", 64L) * MB;
+
+        long growth = benchmark("huge", archive(createWideFolder("hugeIT" + System.currentTimeMillis(), width)),
+                width + 1);
+        assertTrue("Heap growth " + growth / MB + "MB over budget", growth <= budget);
+    }
+
+    /**
+     * Create a folder with width documents, by batches of documents
+     */
+    private NodeRef createWideFolder(String name, int width)
+    {
+        final NodeRef top = createFolder(name);
+        for (int created = 0; created < width; created += NODE_CREATION_BATCH_SIZE)
+        {
+            final int fCreated = created;
+            final int fCount = Math.min(NODE_CREATION_BATCH_SIZE, width - created);
+            doInSystemTransaction(new RetryingTransactionCallback<Object>()
+                {
+                    public Object execute() throws Exception
+                    {
+                        for (int i = 0; i < fCount; i++)
+                        {
+                            createChild(top, "doc" + (fCreated + i), ContentModel.TYPE_CONTENT);
+                        }
+                        return null;
+                    }
+                }, false);
+        }
+        return top;
+    }
+
+    /**
+     * Plan then delete the archived subtree, logging how long each step took and how much the live heap grew
+     *
+     * @return the highest growth of the live heap, in bytes
+     */
+    private long benchmark(String name, final NodeRef archivedRoot, int expectedSize)
+    {
+        ManagementFactory.getMemoryMXBean().gc();
+        long baseline = HeapSampler.liveHeap();
+        HeapSampler sampler = new HeapSampler();
+        sampler.start();
+        long start = System.currentTimeMillis();
+        SubtreePurgePlan plan = AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<SubtreePurgePlan>()
+            {
+                public SubtreePurgePlan doWork() throws Exception
+                {
+                    return trashcanCleaner.planSubtree(archivedRoot);
+                }
+            }, AuthenticationUtil.getSystemUserName());
+        long planned = System.currentTimeMillis();
+        assertNotNull(plan);
+        assertFalse(plan.isProtectedNodeFound());
+        assertEquals(expectedSize, plan.size());
+
+        final SubtreePurgePlan fPlan = plan;
+        int deleted = AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Integer>()
+            {
+                public Integer doWork() throws Exception
+                {
+                    int deleted = 0;
+                    while (fPlan.hasNext())
+                    {
+                        deleted += trashcanCleaner.deleteNextBatch(fPlan, DELETE_BATCH_SIZE);
+                    }
+                    return deleted;
+                }
+            }, AuthenticationUtil.getSystemUserName());
+        long end = System.currentTimeMillis();
+        sampler.shutdown();
+        long growth = sampler.getMaxUsed() - baseline;
+        log.info("Tree " + name + ": " + expectedSize + " nodes planned in " + (planned - start) + " ms, deleted in "
+                + (end - planned) + " ms, live heap growth " + growth / MB + "MB");
+        assertEquals(expectedSize, deleted);
+        assertFalse(doInSystemTransaction(new RetryingTransactionCallback<Boolean>()
+            {
+                public Boolean execute() throws Exception
+                {
+                    return nodeService.exists(archivedRoot);
+                }
+            }, true));
+        return growth;
+    }
+
+    private NodeRef createFolder(final String name)
+    {
+        return doInSystemTransaction(new RetryingTransactionCallback<NodeRef>()
+            {
+                public NodeRef execute() throws Exception
+                {
+                    NodeRef root = nodeService.getRootNode(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE);
+                    return nodeService.createNode(root, ContentModel.ASSOC_CHILDREN,
+                            QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, name), ContentModel.TYPE_FOLDER)
+                            .getChildRef();
+                }
+            }, false);
+    }
+
+    private NodeRef createChild(NodeRef parent, String name, QName type)
+    {
+        return nodeService.createNode(parent, ContentModel.ASSOC_CONTAINS,
+                QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, name), type).getChildRef();
+    }
+
+    /**
+     * Delete the top of the tree, the whole tree moves to the bin
+     *
+     * @return the archived root
+     */
+    private NodeRef archive(final NodeRef top)
+    {
+        doInSystemTransaction(new RetryingTransactionCallback<Object>()
+            {
+                public Object execute() throws Exception
+                {
+                    nodeService.deleteNode(top);
+                    return null;
+                }
+            }, false);
+        return new NodeRef(ARCHIVE_STORE_REF, top.getId());
+    }
+
+    private <R> R doInSystemTransaction(final RetryingTransactionCallback<R> work, final boolean readOnly)
+    {
+        return AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<R>()
+            {
+                public R doWork() throws Exception
+                {
+                    return transactionService.getRetryingTransactionHelper().doInTransaction(work, readOnly, true);
+                }
+            }, AuthenticationUtil.getSystemUserName());
+    }
+}